@@ -0,0 +1,224 @@
+package norswap.sigh.bench;
+
+import norswap.autumn.Autumn;
+import norswap.autumn.Grammar;
+import norswap.autumn.ParseOptions;
+import norswap.autumn.ParseResult;
+import norswap.sigh.SighGrammar;
+import norswap.sigh.ast.QueryNode;
+import norswap.sigh.ast.RuleDeclarationNode;
+import norswap.sigh.interpreter.Functor;
+import norswap.sigh.interpreter.Rule;
+import norswap.sigh.interpreter.RuleStorage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A generated fact base of a given shape and size, along with the rules and the query that are
+ * benchmarked against it.
+ *
+ * <p>The fact base can be loaded directly into a {@link RuleStorage}, or turned into a Sigh
+ * program that loads it (through the {@code load} built-in, from CSV files).
+ */
+public final class FactBase
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** The shapes of fact bases. */
+    public enum Shape
+    {
+        /** {@code size} facts on a single predicate, queried on an indexed argument (1 in 16). */
+        FLAT,
+        /** A chain of {@code size} edges, walked from its start by a right-recursive rule. */
+        CHAIN,
+        /** Two predicates of {@code size} facts and a filter, joined by a rule on shared variables. */
+        JOIN,
+        /** A ring of {@code size} edges, whose closure is computed by a tabled left-recursive rule. */
+        RECURSIVE
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static final SighGrammar grammar = new SighGrammar();
+
+    private static final ParseOptions options = ParseOptions.builder()
+        .wellFormednessCheck(false)
+        .get();
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** The facts of each predicate, by name. */
+    public final Map<String, List<String[]>> facts = new LinkedHashMap<>();
+
+    /** The rules of the fact base. */
+    public final List<String> rules = new ArrayList<>();
+
+    /** The tabling declarations of the fact base, e.g. {@code table path/2.} */
+    public final List<String> tabled = new ArrayList<>();
+
+    /** The benchmarked query, e.g. {@code reach("n0", X)}. */
+    public final String query;
+
+    /** The variables of the query. */
+    public final String[] variables;
+
+    // ---------------------------------------------------------------------------------------------
+
+    public FactBase (Shape shape, int size)
+    {
+        String[] variables = { "X" };
+        switch (shape) {
+            case FLAT:
+                for (int i = 0; i < size; i++)
+                    fact("item", "i" + i, "c" + (i % 16));
+                query = "item(X, \"c3\")";
+                break;
+
+            case CHAIN:
+                for (int i = 0; i < size; i++)
+                    fact("edge", "n" + i, "n" + (i + 1));
+                rules.add("reach(X, Y) := edge(X, Y).");
+                rules.add("reach(X, Y) := edge(X, Z) AND reach(Z, Y).");
+                query = "reach(\"n0\", X)";
+                break;
+
+            case JOIN:
+                // each person has 4 friends and lives in 4 towns, 1 town in 8 is big
+                for (int i = 0; i < size; i++) {
+                    fact("friend", "p" + (i / 4), "p" + ((i * 7 + 1) % (size / 4 + 1)));
+                    fact("lives", "p" + (i / 4), "t" + (i * 13 % size));
+                    if (i % 8 == 0)
+                        fact("big", "t" + i, "yes");
+                }
+                rules.add("visit(X, T) := friend(X, Y) AND lives(Y, T) AND big(T, \"yes\").");
+                query = "visit(X, T)";
+                variables = new String[]{ "X", "T" };
+                break;
+
+            default: // RECURSIVE
+                for (int i = 0; i < size; i++)
+                    fact("edge", "n" + i, "n" + ((i + 1) % size));
+                tabled.add("table path/2.");
+                rules.add("path(X, Y) := edge(X, Y).");
+                rules.add("path(X, Y) := path(X, Z) AND edge(Z, Y).");
+                query = "path(\"n0\", X)";
+                break;
+        }
+        this.variables = variables;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void fact (String name, String... terms) {
+        facts.computeIfAbsent(name, k -> new ArrayList<>()).add(terms);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new storage holding the facts and the rules.
+     */
+    public RuleStorage storage ()
+    {
+        RuleStorage storage = new RuleStorage();
+        facts.forEach((name, rows) -> {
+            for (String[] row : rows)
+                storage.assertFact(name, row);
+        });
+        for (String rule : rules) {
+            RuleDeclarationNode node = parse(grammar.rule_declaration, rule);
+            storage.addRule(new Rule(
+                node.head, node.getHead_args(), node.tails, node.logic_operand, false));
+        }
+        reset(storage);
+        return storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * (Re)declares the tabled predicates, which discards their answer tables: this is done before
+     * each query, so that it evaluates the tables instead of looking up the answers of the
+     * previous query.
+     */
+    public void reset (RuleStorage storage)
+    {
+        for (String declaration : tabled) {
+            String[] functor = declaration.substring(6, declaration.length() - 1).split("/");
+            storage.table(Functor.of(functor[0], Integer.parseInt(functor[1])));
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the query as a node, as passed to {@link
+     * norswap.sigh.interpreter.QuerySolver#solve}.
+     */
+    public QueryNode queryNode () {
+        return parse(grammar.query, "query(" + query + ")");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the facts to CSV files in {@code directory}, and returns a Sigh program that loads
+     * them and declares the rules.
+     */
+    public String program (Path directory) throws IOException
+    {
+        StringBuilder program = new StringBuilder("tear {\n");
+        for (String rule : rules)
+            program.append("    ").append(rule).append('\n');
+        program.append("}\n");
+
+        for (Map.Entry<String, List<String[]>> entry : facts.entrySet()) {
+            Path file = directory.resolve(entry.getKey() + ".csv");
+            List<String> lines = new ArrayList<>();
+            for (String[] row : entry.getValue())
+                lines.add(String.join(",", row));
+            Files.write(file, lines, StandardCharsets.UTF_8);
+            program.append("var ").append(entry.getKey()).append("_count: Int = load(\"")
+                .append(entry.getKey()).append("\", \"")
+                .append(file.toAbsolutePath().toString().replace('\\', '/')).append("\")\n");
+        }
+        return program.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a Sigh program that runs the query and returns whether it has solutions, after
+     * collecting them into arrays (one per variable). Like {@link #reset}, the program starts by
+     * declaring the tabled predicates.
+     */
+    public String queryProgram ()
+    {
+        StringBuilder program = new StringBuilder();
+        if (!tabled.isEmpty())
+            program.append("tear {\n    ").append(String.join("\n    ", tabled)).append("\n}\n");
+        for (String variable : variables)
+            program.append("var ").append(variable).append(": String[] = []\n");
+        return program.append("var found: Bool = query(").append(query).append(")\n")
+            .append("return found\n")
+            .toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static <T> T parse (Grammar.rule rule, String input)
+    {
+        ParseResult result = Autumn.parse(rule, input, options);
+        if (!result.fullMatch)
+            throw new IllegalArgumentException(input + ": " + result.toString());
+        return result.topValue();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
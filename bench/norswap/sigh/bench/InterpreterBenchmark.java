@@ -0,0 +1,97 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.SemanticAnalysis;
+import norswap.sigh.SighGrammar;
+import norswap.sigh.ast.SighNode;
+import norswap.sigh.interpreter.Interpreter;
+import norswap.uranium.Reactor;
+import norswap.utils.visitors.Walker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures queries run by the {@link Interpreter}: the setup interprets a program that declares
+ * the rules and loads the facts from CSV files, then each operation interprets a small program
+ * that runs the query and collects its solutions into arrays. Both programs are analyzed once,
+ * so this adds the conversion of the query and of its solutions to the cost of {@link
+ * QuerySolverBenchmark}.
+ *
+ * <p>Run with {@code ./gradlew jmh}, whose GC profiler reports the allocation rate per query
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({ "FLAT", "CHAIN", "JOIN", "RECURSIVE" })
+    public FactBase.Shape shape;
+
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+
+    private Path directory;
+    private Interpreter interpreter;
+    private SighNode query;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup () throws IOException
+    {
+        FactBase base = new FactBase(shape, size);
+        directory = Files.createTempDirectory("tear-bench");
+        SighGrammar grammar = new SighGrammar();
+        SighNode program = FactBase.parse(grammar.root, base.program(directory));
+        query = FactBase.parse(grammar.root, base.queryProgram());
+
+        Reactor reactor = new Reactor();
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
+        walker.walk(program);
+        walker.walk(query);
+        reactor.run();
+        if (!reactor.errors().isEmpty())
+            throw new IllegalStateException(reactor.errors().toString());
+
+        interpreter = new Interpreter(reactor);
+        interpreter.interpret(program);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @TearDown public void tearDown () throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator)
+                Files.delete(file);
+        }
+        Files.delete(directory);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Object query () {
+        return interpreter.interpret(query);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
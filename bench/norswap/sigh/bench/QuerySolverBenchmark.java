@@ -0,0 +1,63 @@
+package norswap.sigh.bench;
+
+import norswap.sigh.ast.QueryNode;
+import norswap.sigh.interpreter.Pair;
+import norswap.sigh.interpreter.QuerySolver;
+import norswap.sigh.interpreter.RuleStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link QuerySolver#solve} on its own: the fact base is loaded in the storage and the
+ * query is parsed once, each operation solves the query for all its solutions.
+ *
+ * <p>Run with {@code ./gradlew jmh}, whose GC profiler reports the allocation rate per query
+ * ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuerySolverBenchmark
+{
+    // ---------------------------------------------------------------------------------------------
+
+    @Param({ "FLAT", "CHAIN", "JOIN", "RECURSIVE" })
+    public FactBase.Shape shape;
+
+    @Param({ "1000", "10000", "100000" })
+    public int size;
+
+    private FactBase base;
+    private RuleStorage storage;
+    private QueryNode query;
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Setup public void setup () {
+        base = new FactBase(shape, size);
+        storage = base.storage();
+        query = base.queryNode();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Benchmark public Pair solve () {
+        base.reset(storage);
+        return new QuerySolver(storage).solve(query);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
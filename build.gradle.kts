@@ -70,4 +70,32 @@ dependencies {
     testImplementation("org.testng:testng:6.14.3")
 }
 
+// === BENCHMARKS ==================================================================================
+
+// JMH benchmarks of the query engine, in bench/. Run with `./gradlew jmh`, or for instance
+// `./gradlew jmh -Pjmh="QuerySolver -p shape=CHAIN"` to pass arguments to JMH.
+
+val jmh: SourceSet by sourceSets.creating {
+    java.srcDir("bench")
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
+configurations[jmh.implementationConfigurationName].extendsFrom(configurations.implementation.get())
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.36")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.36")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks, reporting throughput and allocations per query."
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    // gc: allocation rate per operation (gc.alloc.rate.norm)
+    args("-prof", "gc", "-rf", "json", "-rff", "$buildDir/jmh-results.json")
+    (project.findProperty("jmh") as String?)?.let { args(it.split(" ")) }
+}
+
 // =================================================================================================
\ No newline at end of file
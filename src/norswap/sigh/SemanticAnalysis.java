@@ -124,6 +124,7 @@ public final class SemanticAnalysis
         walker.register(AssignmentNode.class,           PRE_VISIT,  analysis::assignment);
         walker.register(QueryArgNode.class,             PRE_VISIT,  analysis::queryArg);
         walker.register(QueryNode.class,                PRE_VISIT,  analysis::query);
+        walker.register(ArithmeticNode.class,           PRE_VISIT,  node -> {});
 
         // types
         walker.register(SimpleTypeNode.class,           PRE_VISIT,  analysis::simpleType);
@@ -139,6 +140,7 @@ public final class SemanticAnalysis
         walker.register(StructDeclarationNode.class,    PRE_VISIT,  analysis::structDecl);
         walker.register(FactDeclarationNode.class,      PRE_VISIT,  analysis::factDecl);
         walker.register(RuleDeclarationNode.class,      PRE_VISIT,  analysis::ruleDecl);
+        walker.register(TableDeclarationNode.class,     PRE_VISIT,  analysis::tableDecl);
 
         walker.register(RootNode.class,                 POST_VISIT, analysis::popScope);
         walker.register(BlockNode.class,                POST_VISIT, analysis::popScope);
@@ -468,6 +470,14 @@ public final class SemanticAnalysis
                     }
                 }
             });
+
+        if (node.limit != null)
+            R.rule()
+            .using(node.limit, "type")
+            .by(r -> {
+                if (node.limit.value < 1)
+                    r.error("Query limit must be positive, not: " + node.limit.value, node.limit);
+            });
     }
 
     private void queryArg (QueryArgNode node) {
@@ -864,7 +874,8 @@ public final class SemanticAnalysis
         R.set(node, "type", TypeType.INSTANCE);
 
         forEachIndexed(node.getTerms(), (i, param) -> {
-            R.set(param, "type", StringType.INSTANCE);
+            if (param instanceof StringLiteralNode)
+                R.set(param, "type", StringType.INSTANCE);
         });
     }
 
@@ -877,6 +888,12 @@ public final class SemanticAnalysis
         });
     }
 
+    private void tableDecl (TableDeclarationNode node) {
+        if (node.arity < 0)
+            R.rule().by(r ->
+                r.error("Arity of tabled predicate must not be negative, not: " + node.arity, node));
+    }
+
     // endregion
     // =============================================================================================
     // region [Other Statements]
@@ -1,7 +1,9 @@
 package norswap.sigh;
 
 import norswap.autumn.Grammar;
+import norswap.autumn.positions.Span;
 import norswap.sigh.ast.*;
+import java.util.ArrayList;
 
 import static norswap.sigh.ast.UnaryOperator.NOT;
 
@@ -56,6 +58,8 @@ public class SighGrammar extends Grammar
 
     public rule AND             = word("AND");
 
+    public rule BACKSLASH_PLUS  = word("\\+");
+
     public rule _var            = reserved("var");
     public rule _fun            = reserved("fun");
     public rule _struct         = reserved("struct");
@@ -205,13 +209,15 @@ public class SighGrammar extends Grammar
         seq(upper_alpha, id_part.at_least(0))
         .push($ -> $.str());
 
-    public rule term =
+    public rule term = choice(
         seq('"', string_content, '"')
-        .push($ -> new StringLiteralNode($.span(), $.$[0])).word();
+        .push($ -> new StringLiteralNode($.span(), $.$[0])).word(),
+        floating,
+        integer);
 
     public rule terms =
         term.sep(0, COMMA)
-        .as_list(StringLiteralNode.class);
+        .as_list(ExpressionNode.class);
 
     public rule terms_n_logic_var =
         choice(term, logic_var).sep(0, COMMA)
@@ -235,8 +241,62 @@ public class SighGrammar extends Grammar
         seq(identifier, LPAREN, terms_n_logic_var, RPAREN)
         .push($ -> new QueryArgNode($.span(), $.$[0], $.$[1]));
 
+    public rule cut =
+        seq(BANG)
+        .push($ -> new QueryArgNode($.span(), QueryArgNode.CUT, new ArrayList<>(), QueryArgNode.CUT));
+
+    public rule _not =
+        seq("NOT", id_part.not()).word();
+
+    public rule negation =
+        seq(choice(_not, BACKSLASH_PLUS), query_arg)
+        .push($ -> control($.span(), $.$[0], QueryArgNode.NOT));
+
+    public rule _once =
+        seq("once", id_part.not()).word();
+
+    public rule once =
+        seq(_once, LPAREN, query_arg, RPAREN)
+        .push($ -> control($.span(), $.$[0], QueryArgNode.ONCE));
+
+    public rule arith_var =
+        logic_var.word();
+
+    public rule arith_operand = lazy(() -> choice(
+        floating,
+        integer,
+        arith_var,
+        seq(LPAREN, this.arith_sum, RPAREN)));
+
+    public rule arith_product = left_expression()
+        .operand(arith_operand)
+        .infix(choice(STAR.as_val("*"), SLASH.as_val("/"), PERCENT.as_val("%")),
+            $ -> new ArithmeticNode($.span(), $.$[0], $.$[1], $.$[2]));
+
+    public rule arith_sum = left_expression()
+        .operand(arith_product)
+        .infix(choice(PLUS.as_val("+"), MINUS.as_val("-")),
+            $ -> new ArithmeticNode($.span(), $.$[0], $.$[1], $.$[2]));
+
+    public rule constraint_op = choice(
+        EQUALS_EQUALS.as_val("=="),
+        BANG_EQUAL  .as_val("!="),
+        LANGLE_EQUAL.as_val("<="),
+        RANGLE_EQUAL.as_val(">="),
+        LANGLE      .as_val("<"),
+        RANGLE      .as_val(">"),
+        EQUALS      .as_val("="));
+
+    public rule constraint =
+        seq(arith_sum, constraint_op, arith_sum)
+        .push($ -> new QueryArgNode($.span(),
+            new ArithmeticNode($.span(), $.$[0], $.$[1], $.$[2])));
+
+    public rule tail =
+        choice(cut, negation, once, query_arg, constraint);
+
     public rule tails =
-        choice(seq(query_arg, usual_whitespace, logic_operand), query_arg).sep(1, usual_whitespace)
+        choice(seq(tail, usual_whitespace, logic_operand), tail).sep(1, usual_whitespace)
         .as_list(Object.class);
 
     public rule fact_declaration =
@@ -247,7 +307,15 @@ public class SighGrammar extends Grammar
         seq(identifier, LPAREN, head_args, RPAREN, COLON, EQUALS, tails, DOT)
         .push($ -> new RuleDeclarationNode($.span(), $.$[0], $.$[1], $.$[2]));
 
+    public rule _table =
+        seq("table", id_part.not()).word();
+
+    public rule table_declaration =
+        seq(_table, identifier, SLASH, integer, DOT)
+        .push($ -> new TableDeclarationNode($.span(), $.$[0], $.$[1]));
+
     public rule tear_statement = lazy(() -> choice(
+        this.table_declaration,
         this.fact_declaration,
         this.rule_declaration));
 
@@ -266,9 +334,17 @@ public class SighGrammar extends Grammar
         query_arg.sep(1, COMMA)
         .as_list(QueryArgNode.class);
 
+    public rule query_limit =
+        seq(COMMA, integer).or_push_null();
+
     public rule query =
-        seq(_query, LPAREN, query_args, RPAREN)
-        .push($ -> new QueryNode($.span(), $.$[0]));
+        seq(_query, LPAREN, query_args, query_limit, RPAREN)
+        .push($ -> new QueryNode($.span(), $.$[0], $.$[1]));
+
+    private static QueryArgNode control (Span span, Object goal, String control) {
+        QueryArgNode node = (QueryArgNode) goal;
+        return new QueryArgNode(span, node.name, node.arg_list, control);
+    }
 
     //------------------------------------------------------------------------------
 
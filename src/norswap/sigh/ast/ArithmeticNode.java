@@ -0,0 +1,48 @@
+package norswap.sigh.ast;
+
+import norswap.autumn.positions.Span;
+import norswap.utils.Util;
+
+import java.util.List;
+
+/**
+ * An arithmetic expression or a constraint in the body of a tear rule, e.g. {@code A + 1 > B}.
+ * @operator is one of {@code + - * / %}, or for a constraint (the root of the expression), one
+ * of {@code == != < <= > >=} or {@code =} (which unifies its left side with the value of its
+ * right side). @left and @right are {@link ArithmeticNode}s, numbers ({@link IntLiteralNode},
+ * {@link FloatLiteralNode}) or logic variables (their name).
+ */
+public final class ArithmeticNode extends ExpressionNode
+{
+    public final String operator;
+    public final Object left, right;
+
+    public ArithmeticNode (Span span, Object left, Object operator, Object right) {
+        super(span);
+        this.left = left;
+        this.right = right;
+        this.operator = Util.cast(operator, String.class);
+    }
+
+    /**
+     * Adds the numbers and the variables of the expression to {@code leaves}, from left to right.
+     */
+    public void leaves (List<Object> leaves) {
+        for (Object side : new Object[]{ left, right }) {
+            if (side instanceof ArithmeticNode)
+                ((ArithmeticNode) side).leaves(leaves);
+            else
+                leaves.add(side);
+        }
+    }
+
+    private static String contentsOf (Object side) {
+        return side instanceof ArithmeticNode
+            ? "(" + ((ArithmeticNode) side).contents() + ")"
+            : side instanceof SighNode ? ((SighNode) side).contents() : side.toString();
+    }
+
+    @Override public String contents () {
+        return contentsOf(left) + " " + operator + " " + contentsOf(right);
+    }
+}
@@ -8,7 +8,7 @@ import java.util.List;
 public class FactDeclarationNode extends DeclarationNode {
 
     public final String name;
-    public final List<StringLiteralNode> terms;
+    public final List<ExpressionNode> terms;
 
     @SuppressWarnings("unchecked")
     public FactDeclarationNode(Span span, Object name, Object terms){
@@ -17,7 +17,7 @@ public class FactDeclarationNode extends DeclarationNode {
         this.terms = Util.cast(terms, List.class);
     }
 
-    public List<StringLiteralNode> getTerms () {return terms;}
+    public List<ExpressionNode> getTerms () {return terms;}
 
     @Override public String name () {
         return name;
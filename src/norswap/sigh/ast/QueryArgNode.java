@@ -8,6 +8,10 @@ import java.util.HashMap;
 import java.util.List;
 
 public class QueryArgNode extends ExpressionNode {
+
+    /** Values of {@link #control} for the control constructs of rule bodies. */
+    public static final String CUT = "!", NOT = "NOT", ONCE = "once", EVAL = "eval";
+
     public final String name;
     public final Integer arity;
     public final HashMap<Integer, StringLiteralNode> terms;
@@ -16,9 +20,37 @@ public class QueryArgNode extends ExpressionNode {
     public final List<Object> arg_list;
     public final Object list_to_print;
 
-    @SuppressWarnings("unchecked")
+    /**
+     * Null for a plain goal, otherwise the control construct it stands for: {@link #CUT} (then
+     * {@link #name} is "!" and there are no terms), or {@link #NOT} or {@link #ONCE} applied to
+     * the goal described by the other fields, or {@link #EVAL} for a constraint.
+     */
+    public final String control;
+
+    /**
+     * For a constraint, the {@link ArithmeticNode} to evaluate: {@link #name} is its operator, and
+     * {@link #arg_list} holds its numbers and variables, from left to right (see {@link
+     * ArithmeticNode#leaves}). Null otherwise.
+     */
+    public final Object expression;
+
     public QueryArgNode (Span span, Object name, Object terms) {
+        this(span, name, terms, null);
+    }
+
+    public QueryArgNode (Span span, ArithmeticNode constraint) {
+        this(span, constraint.operator, leaves(constraint), EVAL, constraint);
+    }
+
+    public QueryArgNode (Span span, Object name, Object terms, String control) {
+        this(span, name, terms, control, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private QueryArgNode (Span span, Object name, Object terms, String control, Object expression) {
         super(span);
+        this.control = control;
+        this.expression = expression;
         this.list_to_print = terms;
         this.name = Util.cast(name, String.class);
         this.arg_list = (List<Object>) terms;
@@ -35,6 +67,12 @@ public class QueryArgNode extends ExpressionNode {
         }
     }
 
+    private static List<Object> leaves (ArithmeticNode constraint) {
+        List<Object> leaves = new ArrayList<>();
+        constraint.leaves(leaves);
+        return leaves;
+    }
+
     public HashMap<Integer, StringLiteralNode> getTerms () {return terms;}
 
     public List<StringLiteralNode> getTermsAsList () {
@@ -57,6 +95,16 @@ public class QueryArgNode extends ExpressionNode {
         for(int i = 0; i < arity; i++) {
             str.append(arg_list.get(i));
         }
-        return name + "(" + str.toString() + ")";
+        String goal = name + "(" + str.toString() + ")";
+        if (control == null)
+            return goal;
+        else if (control.equals(CUT))
+            return CUT;
+        else if (control.equals(EVAL))
+            return ((ArithmeticNode) expression).contents();
+        else if (control.equals(NOT))
+            return NOT + " " + goal;
+        else
+            return ONCE + "(" + goal + ")";
     }
 }
\ No newline at end of file
@@ -7,12 +7,18 @@ import java.util.List;
 
 public class QueryNode extends ExpressionNode {
     public final List<QueryArgNode> queryArgs;
+    /** Maximum number of solutions to look for, or null if all solutions are wanted. */
+    public final IntLiteralNode limit;
 
-    @SuppressWarnings("unchecked")
     public QueryNode(Span span, Object queryArgs) {
+        this(span, queryArgs, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public QueryNode(Span span, Object queryArgs, Object limit) {
         super(span);
         this.queryArgs = Util.cast(queryArgs, List.class);
-
+        this.limit = Util.cast(limit, IntLiteralNode.class);
     }
 
     public List<QueryArgNode> getQueryArgs() {
@@ -25,6 +31,9 @@ public class QueryNode extends ExpressionNode {
         for(int i = 0; i < queryArgs.size(); i++){
             str += queryArgs.get(i).contents() + "\n";
         }
+        if (limit != null) {
+            str += limit.contents() + "\n";
+        }
         return str;
     }
 }
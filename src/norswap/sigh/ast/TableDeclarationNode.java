@@ -0,0 +1,24 @@
+package norswap.sigh.ast;
+
+import norswap.autumn.positions.Span;
+import norswap.utils.Util;
+
+/**
+ * Turns on tabling for the predicate with the given name and arity ({@code table path/2.}).
+ */
+public class TableDeclarationNode extends StatementNode {
+
+    public final String name;
+    public final long arity;
+
+    public TableDeclarationNode(Span span, Object name, Object arity){
+        super(span);
+        this.name = Util.cast(name, String.class);
+        IntLiteralNode literal = Util.cast(arity, IntLiteralNode.class);
+        this.arity = literal.value;
+    }
+
+    @Override public String contents () {
+        return "table " + name + "/" + arity;
+    }
+}
@@ -2,6 +2,8 @@ package norswap.sigh.bytecode;
 
 import norswap.sigh.ast.*;
 import norswap.sigh.interpreter.Constructor;
+import norswap.sigh.interpreter.Functor;
+import norswap.sigh.scopes.DeclarationContext;
 import norswap.sigh.scopes.Scope;
 import norswap.sigh.scopes.SyntheticDeclarationNode;
 import norswap.sigh.types.*;
@@ -17,7 +19,9 @@ import java.lang.invoke.MethodHandle;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import static norswap.sigh.ast.BinaryOperator.*;
@@ -51,6 +55,21 @@ import static org.objectweb.asm.Opcodes.*;
  *     type of types) is represented by {@code Class.class}.</li>
  * </ul>
  *
+ * <h2>Tear Blocks and Queries</h2>
+ * <p>The facts and rules of all the tear blocks in the source unit are compiled statically: they
+ * are visible to every query, regardless of where the tear blocks appear. Each predicate is
+ * compiled to a static method that performs unification and backtracking in continuation-passing
+ * style, as described in {@link LogicRuntime}. Consecutive facts of a predicate are stored in a
+ * static table of strings, initialized when the class is loaded. Because the continuations are
+ * invoked as Java calls, the depth of a compiled query is bounded by the thread stack.
+ *
+ * <p>Only string terms and plain goals joined by conjunctions are supported. Numbers, control
+ * constructs (cut, negation, once and constraints), disjunctions, tabling, the {@code assert},
+ * {@code retract} and {@code load} builtins, and query variables declared in an enclosing function
+ * are rejected with an {@link UnsupportedOperationException} when the unit is compiled: they
+ * either require the dynamic rule storage of the interpreter, or could not terminate (left
+ * recursion without tabling).
+ *
  * <h2>Useful Links</h2>
  * <ul>
  *     <li>https://en.wikipedia.org/wiki/Java_bytecode_instruction_listings</li>
@@ -108,12 +127,16 @@ public class BytecodeCompiler
         visitor.register(ParameterNode.class,            this::parameter);
         visitor.register(FunDeclarationNode.class,       this::funDecl);
         visitor.register(StructDeclarationNode.class,    this::structDecl);
+        visitor.register(FactDeclarationNode.class,      this::clauseDecl);
+        visitor.register(RuleDeclarationNode.class,      this::clauseDecl);
+        visitor.register(TableDeclarationNode.class,     this::tableDecl);
 
         // statements
         visitor.register(ExpressionStatementNode.class,  this::expressionStmt);
         visitor.register(IfNode.class,                   this::ifStmt);
         visitor.register(WhileNode.class,                this::whileStmt);
         visitor.register(ReturnNode.class,               this::returnStmt);
+        visitor.register(QueryNode.class,                this::query);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -138,12 +161,24 @@ public class BytecodeCompiler
     /** Maps variables in a scope to a variable index. */
     private final HashMap<Pair<Scope, String>, Integer> variables = new HashMap<>();
 
+    /** Maps variables in a scope to the method they are local to. */
+    private final HashMap<Pair<Scope, String>, MethodVisitor> variableMethods = new HashMap<>();
+
     /** Counter used to number variables in {@link #variables}. */
     private int variableCounter = 0;
 
     /** Whether we are in top-level code. */
     private boolean topLevel;
 
+    /** The facts and rules declared in the source unit for each predicate, in declaration order. */
+    private final LinkedHashMap<Functor, List<DeclarationNode>> clauses = new LinkedHashMap<>();
+
+    /** Maps each predicate referenced in the source unit to its number in compiled goals. */
+    private final HashMap<Functor, Integer> predicates = new HashMap<>();
+
+    /** Name and initial content of the static fields holding fact tables. */
+    private final ArrayList<Pair<String, List<FactDeclarationNode>>> factTables = new ArrayList<>();
+
     // ---------------------------------------------------------------------------------------------
 
     /**
@@ -176,6 +211,8 @@ public class BytecodeCompiler
         container.visit(V1_8, ACC_PUBLIC, containerName, null, "java/lang/Object", null);
 
         // Top-level code belongs in the run method.
+        collectClauses(node);
+
         method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, "run",
                 "([Ljava/lang/String;)Ljava/lang/Object;", null, null);
         method.visitCode();
@@ -200,6 +237,10 @@ public class BytecodeCompiler
         method.visitInsn(RETURN); // explicitly necessary
         method.visitEnd();
         method.visitMaxs(-1, -1);
+
+        clauses.forEach(this::predicate);
+        dispatcher();
+        factTables();
         container.visitEnd();
         return null;
     }
@@ -214,10 +255,10 @@ public class BytecodeCompiler
 
         variableCounter = 0;
         topLevel = false;
-        node.parameters.forEach(this::run);
 
         String descriptor = methodDescriptor(reactor.get(node, "type"));
         method = container.visitMethod(ACC_PUBLIC | ACC_STATIC, node.name, descriptor, null, null);
+        node.parameters.forEach(this::run);
         method.visitCode();
         run(node.block);
 
@@ -566,7 +607,9 @@ public class BytecodeCompiler
 
     private Object builtin (FunType funType, String name, List<ExpressionNode> arguments)
     {
-        assert name.equals("print"); // only one at the moment
+        if (name.equals("assert") || name.equals("retract") || name.equals("load"))
+            throw new UnsupportedOperationException(name + " in compiled code");
+        assert name.equals("print");
         method.visitFieldInsn(GETSTATIC, "java/lang/System", "out",
                 "Ljava/io/PrintStream;");
         runArguments(funType, arguments);
@@ -850,6 +893,487 @@ public class BytecodeCompiler
         return null;
     }
 
+    // =============================================================================================
+    // region [Tear Blocks and Queries]
+    // =============================================================================================
+
+    private static final String RUNTIME = slashBinaryName(LogicRuntime.class);
+    private static final String GOAL = slashBinaryName(LogicRuntime.Goal.class);
+    private static final String VAR = slashBinaryName(LogicRuntime.Var.class);
+    private static final String TABLE_DESCRIPTOR = AsmUtils.fieldDescriptor(String[][].class);
+    private static final String GOAL_INIT_DESCRIPTOR =
+        AsmUtils.methodDescriptor(void.class, int.class, Object[].class, LogicRuntime.Goal.class);
+
+    /** Descriptor of the methods implementing predicates, and of the dispatcher. */
+    private static final String PREDICATE_DESCRIPTOR = AsmUtils.methodDescriptor(
+        boolean.class, LogicRuntime.class, Object[].class, LogicRuntime.Goal.class);
+    private static final String CALL_DESCRIPTOR =
+        AsmUtils.methodDescriptor(boolean.class, LogicRuntime.class, LogicRuntime.Goal.class);
+
+    /** Name of the method that calls the first goal of a continuation. */
+    private static final String CALL = "tear$call";
+
+    /** Maximum number of characters of a string in the constant pool (in the worst case). */
+    private static final int MAX_CONSTANT_LENGTH = 65535 / 3;
+
+    // Local variables of the methods implementing predicates.
+    private static final int RUNTIME_VAR = 0;
+    private static final int ARGS_VAR = 1;
+    private static final int CONTINUATION_VAR = 2;
+    private static final int MARK_VAR = 3;
+    private static final int TABLE_VAR = 4;
+    private static final int ROW_VAR = 5;
+    private static final int GOALS_VAR = 6;
+    private static final int FIRST_CLAUSE_VAR = 7;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers the facts and rules declared in tear blocks under {@code node}.
+     */
+    private void collectClauses (SighNode node)
+    {
+        if (node instanceof FactDeclarationNode) {
+            FactDeclarationNode fact = (FactDeclarationNode) node;
+            for (ExpressionNode term: fact.terms)
+                if (!(term instanceof StringLiteralNode))
+                    throw new UnsupportedOperationException("numbers in compiled code");
+            Functor functor = Functor.of(fact.name, fact.terms.size());
+            clauses.computeIfAbsent(functor, k -> new ArrayList<>()).add(fact);
+            predicateNumber(functor);
+        }
+        else if (node instanceof RuleDeclarationNode) {
+            RuleDeclarationNode rule = (RuleDeclarationNode) node;
+            Functor functor = Functor.of(rule.head, rule.head_args.size());
+            clauses.computeIfAbsent(functor, k -> new ArrayList<>()).add(rule);
+            predicateNumber(functor);
+        }
+        else if (node instanceof RootNode)
+            ((RootNode) node).statements.forEach(this::collectClauses);
+        else if (node instanceof BlockNode)
+            ((BlockNode) node).statements.forEach(this::collectClauses);
+        else if (node instanceof FunDeclarationNode)
+            collectClauses(((FunDeclarationNode) node).block);
+        else if (node instanceof IfNode) {
+            collectClauses(((IfNode) node).trueStatement);
+            if (((IfNode) node).falseStatement != null)
+                collectClauses(((IfNode) node).falseStatement);
+        }
+        else if (node instanceof WhileNode)
+            collectClauses(((WhileNode) node).body);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object clauseDecl (DeclarationNode node) {
+        // not needed - compiled statically, see #collectClauses
+        return null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object tableDecl (TableDeclarationNode node) {
+        // Without tabling, left recursion would overflow the stack instead of terminating.
+        throw new UnsupportedOperationException(
+            "tabling in compiled code (table " + node.name + "/" + node.arity + ")");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of the predicate in compiled goals, assigning it if needed.
+     */
+    private int predicateNumber (Functor functor) {
+        return predicates.computeIfAbsent(functor, k -> predicates.size());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private String predicateMethodName (Functor functor) {
+        return "tear$" + functor.name + "$" + functor.arity;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Calls the runtime method with the given name and parameter types on the receiver and
+     * arguments on the stack.
+     */
+    private void invokeRuntime (MethodVisitor visitor, String name, Class<?>... parameterTypes) {
+        visitor.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, name,
+            AsmUtils.methodDescriptor(LogicRuntime.class, name, parameterTypes), false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the method implementing the predicate with the given clauses.
+     */
+    private void predicate (Functor functor, List<DeclarationNode> clauses)
+    {
+        MethodVisitor surroundingMethod = method;
+        method = container.visitMethod(ACC_PRIVATE | ACC_STATIC, predicateMethodName(functor),
+            PREDICATE_DESCRIPTOR, null, null);
+        method.visitCode();
+        method.visitVarInsn(ALOAD, RUNTIME_VAR);
+        invokeRuntime(method, "mark");
+        method.visitVarInsn(ISTORE, MARK_VAR);
+
+        int i = 0;
+        while (i < clauses.size()) {
+            if (clauses.get(i) instanceof RuleDeclarationNode) {
+                rule((RuleDeclarationNode) clauses.get(i++));
+                continue;
+            }
+            List<FactDeclarationNode> facts = new ArrayList<>();
+            while (i < clauses.size() && clauses.get(i) instanceof FactDeclarationNode)
+                facts.add((FactDeclarationNode) clauses.get(i++));
+            String table = predicateMethodName(functor) + "$" + factTables.size();
+            factTables.add(new Pair<>(table, facts));
+            facts(table);
+        }
+
+        method.visitInsn(ICONST_0);
+        method.visitInsn(IRETURN);
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+        method = surroundingMethod;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the code that tries the facts of the given table in turn.
+     */
+    private void facts (String table)
+    {
+        Label loopLabel = new Label();
+        Label failLabel = new Label();
+        Label endLabel = new Label();
+
+        method.visitFieldInsn(GETSTATIC, containerName, table, TABLE_DESCRIPTOR);
+        method.visitVarInsn(ASTORE, TABLE_VAR);
+        method.visitInsn(ICONST_0);
+        method.visitVarInsn(ISTORE, ROW_VAR);
+
+        method.visitLabel(loopLabel);
+        method.visitVarInsn(ILOAD, ROW_VAR);
+        method.visitVarInsn(ALOAD, TABLE_VAR);
+        method.visitInsn(ARRAYLENGTH);
+        method.visitJumpInsn(IF_ICMPGE, endLabel);
+
+        method.visitVarInsn(ALOAD, RUNTIME_VAR);
+        method.visitVarInsn(ALOAD, ARGS_VAR);
+        method.visitVarInsn(ALOAD, TABLE_VAR);
+        method.visitVarInsn(ILOAD, ROW_VAR);
+        method.visitInsn(AALOAD);
+        invokeRuntime(method, "unifyRow", Object[].class, String[].class);
+        method.visitJumpInsn(IF_ZERO, failLabel);
+        callContinuation(CONTINUATION_VAR, failLabel);
+
+        method.visitLabel(failLabel);
+        undo();
+        method.visitIincInsn(ROW_VAR, 1);
+        method.visitJumpInsn(GOTO, loopLabel);
+        method.visitLabel(endLabel);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the code that tries the given rule.
+     */
+    private void rule (RuleDeclarationNode node)
+    {
+        for (QueryArgNode tail: node.tails)
+            if (tail.control != null)
+                throw new UnsupportedOperationException(
+                    "cut, negation, once and constraints in compiled code");
+        for (String operand: node.logic_operand)
+            if (operand.trim().equals("OR"))
+                throw new UnsupportedOperationException("disjunctions in compiled code");
+
+        Label failLabel = new Label();
+        HashMap<String, Integer> vars = new HashMap<>();
+
+        // The first occurrence of a variable in the head stands for the corresponding argument.
+        for (int i = 0; i < node.head_args.size(); i++) {
+            String var = node.head_args.get(i);
+            Integer index = vars.get(var);
+            if (index == null) {
+                index = FIRST_CLAUSE_VAR + vars.size();
+                vars.put(var, index);
+                loadArg(i);
+                method.visitVarInsn(ASTORE, index);
+            } else {
+                method.visitVarInsn(ALOAD, RUNTIME_VAR);
+                method.visitVarInsn(ALOAD, index);
+                loadArg(i);
+                invokeRuntime(method, "unify", Object.class, Object.class);
+                method.visitJumpInsn(IF_ZERO, failLabel);
+            }
+        }
+
+        // Variables that only appear in the tails are fresh.
+        for (QueryArgNode tail: node.tails)
+            for (Object arg: tail.arg_list)
+                if (arg instanceof String && !vars.containsKey(arg)) {
+                    int index = FIRST_CLAUSE_VAR + vars.size();
+                    vars.put((String) arg, index);
+                    method.visitTypeInsn(NEW, VAR);
+                    method.visitInsn(DUP);
+                    method.visitLdcInsn(arg);
+                    method.visitMethodInsn(INVOKESPECIAL, VAR, "<init>",
+                        AsmUtils.methodDescriptor(void.class, String.class), false);
+                    method.visitVarInsn(ASTORE, index);
+                }
+
+        method.visitVarInsn(ALOAD, CONTINUATION_VAR);
+        method.visitVarInsn(ASTORE, GOALS_VAR);
+        for (int i = node.tails.size() - 1; i >= 0; i--)
+            goal(node.tails.get(i), GOALS_VAR, var -> method.visitVarInsn(ALOAD, vars.get(var)));
+        callContinuation(GOALS_VAR, failLabel);
+
+        method.visitLabel(failLabel);
+        undo();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void loadArg (int i) {
+        method.visitVarInsn(ALOAD, ARGS_VAR);
+        loadConstant(method, i);
+        method.visitInsn(AALOAD);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void undo () {
+        method.visitVarInsn(ALOAD, RUNTIME_VAR);
+        method.visitVarInsn(ILOAD, MARK_VAR);
+        invokeRuntime(method, "undo", int.class);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the code that calls the continuation in the given local variable, returning true if
+     * it does, and jumping to {@code failLabel} otherwise.
+     */
+    private void callContinuation (int continuationVar, Label failLabel)
+    {
+        method.visitVarInsn(ALOAD, RUNTIME_VAR);
+        method.visitVarInsn(ALOAD, continuationVar);
+        method.visitMethodInsn(INVOKESTATIC, containerName, CALL, CALL_DESCRIPTOR, false);
+        method.visitJumpInsn(IF_ZERO, failLabel);
+        method.visitInsn(ICONST_1);
+        method.visitInsn(IRETURN);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the code that prepends a goal for {@code node} to the continuation in the local
+     * variable {@code goalsVar}, using {@code loadVar} to emit the code that loads a variable.
+     */
+    private void goal (QueryArgNode node, int goalsVar, Consumer<String> loadVar)
+    {
+        method.visitTypeInsn(NEW, GOAL);
+        method.visitInsn(DUP);
+        loadConstant(method, predicateNumber(Functor.of(node.name, node.arity)));
+        loadConstant(method, node.arity);
+        method.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+        for (int i = 0; i < node.arity; i++) {
+            Object arg = node.arg_list.get(i);
+            method.visitInsn(DUP);
+            loadConstant(method, i);
+            if (arg instanceof StringLiteralNode)
+                method.visitLdcInsn(((StringLiteralNode) arg).value);
+            else if (arg instanceof String)
+                loadVar.accept((String) arg);
+            else
+                throw new UnsupportedOperationException("numbers in compiled code");
+            method.visitInsn(AASTORE);
+        }
+        method.visitVarInsn(ALOAD, goalsVar);
+        method.visitMethodInsn(INVOKESPECIAL, GOAL, "<init>", GOAL_INIT_DESCRIPTOR, false);
+        method.visitVarInsn(ASTORE, goalsVar);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the method that calls the first goal of a continuation, dispatching on its predicate.
+     */
+    private void dispatcher ()
+    {
+        if (predicates.isEmpty())
+            return;
+
+        method = container.visitMethod(ACC_PRIVATE | ACC_STATIC, CALL, CALL_DESCRIPTOR, null, null);
+        method.visitCode();
+
+        Label defaultLabel = new Label();
+        Label doneLabel = new Label();
+        Label[] labels = new Label[predicates.size() + 1];
+        labels[0] = doneLabel;
+        for (int i = 1; i < labels.length; i++)
+            labels[i] = defaultLabel;
+        for (Functor functor: clauses.keySet())
+            labels[predicates.get(functor) + 1] = new Label();
+
+        method.visitVarInsn(ALOAD, 1);
+        method.visitFieldInsn(GETFIELD, GOAL, "predicate", "I");
+        method.visitTableSwitchInsn(LogicRuntime.DONE, predicates.size() - 1, defaultLabel, labels);
+
+        method.visitLabel(doneLabel);
+        method.visitVarInsn(ALOAD, 0);
+        invokeRuntime(method, "solution");
+        method.visitInsn(IRETURN);
+
+        for (Functor functor: clauses.keySet()) {
+            method.visitLabel(labels[predicates.get(functor) + 1]);
+            method.visitVarInsn(ALOAD, 0);
+            method.visitVarInsn(ALOAD, 1);
+            method.visitFieldInsn(GETFIELD, GOAL, "args", "[Ljava/lang/Object;");
+            method.visitVarInsn(ALOAD, 1);
+            method.visitFieldInsn(GETFIELD, GOAL, "next", "L" + GOAL + ";");
+            method.visitMethodInsn(INVOKESTATIC, containerName, predicateMethodName(functor),
+                PREDICATE_DESCRIPTOR, false);
+            method.visitInsn(IRETURN);
+        }
+
+        // predicates without clauses
+        method.visitLabel(defaultLabel);
+        method.visitInsn(ICONST_0);
+        method.visitInsn(IRETURN);
+
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Emits the static fields holding the fact tables, and the static initializer that fills them.
+     */
+    private void factTables ()
+    {
+        if (factTables.isEmpty())
+            return;
+
+        method = container.visitMethod(ACC_STATIC, "<clinit>", "()V", null, null);
+        method.visitCode();
+
+        for (Pair<String, List<FactDeclarationNode>> table: factTables) {
+            container.visitField(ACC_PRIVATE | ACC_STATIC | ACC_FINAL, table.a, TABLE_DESCRIPTOR,
+                null, null);
+
+            List<String> chunks = new ArrayList<>();
+            StringBuilder chunk = new StringBuilder();
+            for (FactDeclarationNode fact: table.b)
+                for (ExpressionNode term: fact.terms) {
+                    chunk.append(((StringLiteralNode) term).value).append('\0');
+                    while (chunk.length() >= MAX_CONSTANT_LENGTH) {
+                        chunks.add(chunk.substring(0, MAX_CONSTANT_LENGTH));
+                        chunk.delete(0, MAX_CONSTANT_LENGTH);
+                    }
+                }
+            chunks.add(chunk.toString());
+
+            loadConstant(method, table.b.size());
+            loadConstant(method, table.b.get(0).terms.size());
+            loadConstant(method, chunks.size());
+            method.visitTypeInsn(ANEWARRAY, "java/lang/String");
+            for (int i = 0; i < chunks.size(); i++) {
+                method.visitInsn(DUP);
+                loadConstant(method, i);
+                method.visitLdcInsn(chunks.get(i));
+                method.visitInsn(AASTORE);
+            }
+            invokeStatic(method, LogicRuntime.class, "table", int.class, int.class, String[].class);
+            method.visitFieldInsn(PUTSTATIC, containerName, table.a, TABLE_DESCRIPTOR);
+        }
+
+        method.visitInsn(RETURN);
+        method.visitMaxs(-1, -1);
+        method.visitEnd();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Object query (QueryNode node)
+    {
+        // Variables of the query, in order of appearance.
+        LinkedHashMap<String, Integer> vars = new LinkedHashMap<>();
+        for (QueryArgNode arg: node.queryArgs)
+            for (Object term: arg.arg_list)
+                if (term instanceof String)
+                    vars.putIfAbsent((String) term, vars.size());
+
+        // Without variables to bind, the first solution is enough to know the query is true.
+        long limit = node.limit != null ? node.limit.value : Long.MAX_VALUE;
+        if (vars.isEmpty())
+            limit = 1;
+
+        int runtimeVar = variableCounter++;
+        int goalsVar = variableCounter++;
+
+        method.visitTypeInsn(NEW, RUNTIME);
+        method.visitInsn(DUP);
+        loadConstant(method, vars.size());
+        method.visitTypeInsn(ANEWARRAY, "java/lang/String");
+        for (String var: vars.keySet()) {
+            method.visitInsn(DUP);
+            loadConstant(method, vars.get(var));
+            method.visitLdcInsn(var);
+            method.visitInsn(AASTORE);
+        }
+        loadConstant(method, limit);
+        method.visitMethodInsn(INVOKESPECIAL, RUNTIME, "<init>",
+            AsmUtils.methodDescriptor(void.class, String[].class, long.class), false);
+        method.visitVarInsn(ASTORE, runtimeVar);
+
+        method.visitVarInsn(ALOAD, runtimeVar);
+        invokeRuntime(method, "done");
+        method.visitVarInsn(ASTORE, goalsVar);
+        for (int i = node.queryArgs.size() - 1; i >= 0; i--)
+            goal(node.queryArgs.get(i), goalsVar, var -> {
+                method.visitVarInsn(ALOAD, runtimeVar);
+                loadConstant(method, vars.get(var));
+                invokeRuntime(method, "var", int.class);
+            });
+
+        method.visitVarInsn(ALOAD, runtimeVar);
+        method.visitVarInsn(ALOAD, goalsVar);
+        method.visitMethodInsn(INVOKESTATIC, containerName, CALL, CALL_DESCRIPTOR, false);
+        method.visitInsn(POP);
+
+        // Assign the values of each variable to the array variable of the same name, if any.
+        Scope scope = reactor.get(node, "scope");
+        for (String var: vars.keySet()) {
+            DeclarationContext context = scope.lookup(var);
+            if (context == null || !(context.declaration instanceof VarDeclarationNode
+                    || context.declaration instanceof ParameterNode)
+                    || !(reactor.get(context.declaration, "type") instanceof ArrayType))
+                continue;
+            Pair<Scope, String> key = new Pair<>(context.scope, var);
+            if (variableMethods.get(key) != method)
+                throw new UnsupportedOperationException("query variables declared in an "
+                    + "enclosing function in compiled code (" + var + ")");
+            int index = variables.get(key);
+            method.visitVarInsn(ALOAD, runtimeVar);
+            loadConstant(method, vars.get(var));
+            invokeRuntime(method, "values", int.class);
+            method.visitVarInsn(ASTORE, index);
+        }
+
+        method.visitVarInsn(ALOAD, runtimeVar);
+        invokeRuntime(method, "found");
+        return null;
+    }
+
+    // endregion
     // =============================================================================================
     // region [Utilities]
     // =============================================================================================
@@ -891,7 +1415,9 @@ public class BytecodeCompiler
     private int registerVariable (DeclarationNode node, org.objectweb.asm.Type type) {
         int index = variableCounter;
         variableCounter += type.getSize();
-        variables.put(new Pair<>(reactor.get(node, "scope"), node.name()), index);
+        Pair<Scope, String> key = new Pair<>(reactor.get(node, "scope"), node.name());
+        variables.put(key, index);
+        variableMethods.put(key, method);
         return index;
     }
 
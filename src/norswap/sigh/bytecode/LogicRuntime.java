@@ -0,0 +1,212 @@
+package norswap.sigh.bytecode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Runtime support for the code generated for tear blocks and queries by {@link BytecodeCompiler}.
+ *
+ * <p>Each predicate is compiled to a static method taking an instance of this class (holding the
+ * state of the query being solved), the arguments of the goal, and the continuation: the {@link
+ * Goal} to solve once the predicate succeeds. The method tries each clause in turn, unifying its
+ * head with the arguments, then calling the continuation (extended with the tails of the clause,
+ * for rules). It returns true if the search must stop, and false if it must backtrack. Bindings
+ * made since the clause was tried are then undone using the trail.
+ *
+ * <p>Terms are represented as {@link String} and logic variables as {@link Var}.
+ */
+public final class LogicRuntime
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A logic variable, bound to a String or another Var, or unbound if {@code ref} is null.
+     */
+    public static final class Var
+    {
+        final String name;
+        Object ref;
+
+        public Var (String name) {
+            this.name = name;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A goal followed by the goals to solve after it. The last goal of a continuation has {@link
+     * #DONE} for predicate, and is solved when a solution to the query is found.
+     */
+    public static final class Goal
+    {
+        public final int predicate;
+        public final Object[] args;
+        public final Goal next;
+
+        public Goal (int predicate, Object[] args, Goal next) {
+            this.predicate = predicate;
+            this.args = args;
+            this.next = next;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Predicate number of the goal marking the end of a continuation. */
+    public static final int DONE = -1;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Var[] vars;
+    private final long limit;
+    private final ArrayList<String[]> solutions = new ArrayList<>();
+
+    private Var[] trail = new Var[64];
+    private int trailTop = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Creates the state for a query whose variables have the given names, which stops after
+     * {@code limit} solutions.
+     */
+    public LogicRuntime (String[] names, long limit)
+    {
+        this.vars = new Var[names.length];
+        for (int i = 0; i < names.length; i++)
+            vars[i] = new Var(names[i]);
+        this.limit = limit;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the i-th variable of the query. */
+    public Var var (int i) {
+        return vars[i];
+    }
+
+    /** Returns the goal marking the end of a continuation. */
+    public Goal done () {
+        return new Goal(DONE, null, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the current size of the trail, to be passed to {@link #undo}. */
+    public int mark () {
+        return trailTop;
+    }
+
+    /** Unbinds the variables bound since {@link #mark} returned {@code mark}. */
+    public void undo (int mark)
+    {
+        while (trailTop > mark) {
+            trail[--trailTop].ref = null;
+            trail[trailTop] = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Object deref (Object term)
+    {
+        while (term instanceof Var && ((Var) term).ref != null)
+            term = ((Var) term).ref;
+        return term;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void bind (Var var, Object term)
+    {
+        var.ref = term;
+        if (trailTop == trail.length)
+            trail = Arrays.copyOf(trail, trailTop * 2);
+        trail[trailTop++] = var;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Unifies two terms, recording the bindings on the trail. Returns false if they do not unify,
+     * in which case some bindings may already have been made.
+     */
+    public boolean unify (Object a, Object b)
+    {
+        a = deref(a);
+        b = deref(b);
+        if (a == b)
+            return true;
+        if (a instanceof Var)
+            bind((Var) a, b);
+        else if (b instanceof Var)
+            bind((Var) b, a);
+        else
+            return a.equals(b);
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Unifies the arguments of a goal with a row of a fact table. */
+    public boolean unifyRow (Object[] args, String[] row)
+    {
+        for (int i = 0; i < row.length; i++)
+            if (!unify(args[i], row[i]))
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Called when all the goals of the query are solved: records the value of its variables.
+     * Returns true if the search must stop, because the limit on the number of solutions has
+     * been reached.
+     */
+    public boolean solution ()
+    {
+        String[] solution = new String[vars.length];
+        for (int i = 0; i < vars.length; i++) {
+            Object value = deref(vars[i]);
+            solution[i] = value instanceof Var ? "_" + ((Var) value).name : (String) value;
+        }
+        solutions.add(solution);
+        return solutions.size() >= limit;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether a solution has been found. */
+    public boolean found () {
+        return !solutions.isEmpty();
+    }
+
+    /** Returns the values of the i-th variable in each solution found. */
+    public String[] values (int i)
+    {
+        String[] values = new String[solutions.size()];
+        for (int j = 0; j < values.length; j++)
+            values[j] = solutions.get(j)[i];
+        return values;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Decodes a fact table of {@code rows} facts with {@code arity} terms each, whose terms were
+     * concatenated (separated by {@code '\0'}) then split into chunks short enough to be stored in
+     * the constant pool.
+     */
+    public static String[][] table (int rows, int arity, String[] chunks)
+    {
+        String[] terms = String.join("", chunks).split("\0", -1);
+        String[][] table = new String[rows][];
+        for (int i = 0; i < rows; i++)
+            table[i] = Arrays.copyOfRange(terms, i * arity, (i + 1) * arity);
+        return table;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,94 @@
+package norswap.sigh.interpreter;
+
+import java.util.HashMap;
+
+/**
+ * Hash index over one argument position of a predicate, mapping each atom that appears at that
+ * position to the clauses that can unify with it. Clauses are designated by their reference in
+ * the {@link Predicate}.
+ *
+ * <p>Clauses that have a logic variable at the indexed position match every term: they are kept in
+ * {@link #open} and also appended to every bucket, so that each bucket lists its clauses in
+ * declaration order and a lookup never has to merge two lists.
+ */
+final class ArgumentIndex
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final HashMap<Integer, IntList> buckets;
+    private final IntList open = new IntList(4);
+
+    // ---------------------------------------------------------------------------------------------
+
+    ArgumentIndex () {
+        buckets = new HashMap<>();
+    }
+
+    /**
+     * Creates an index sized for the given number of distinct atoms.
+     */
+    ArgumentIndex (int distinct) {
+        buckets = new HashMap<>(Math.max(16, (int) (distinct / 0.75f) + 1));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers a clause whose argument at the indexed position is the atom whose canonical box
+     * is {@code atom} (see {@link AtomTable#box}), or a logic variable if {@code atom} is null.
+     */
+    void add (int clause, Integer atom)
+    {
+        if (atom == null) {
+            open.add(clause);
+            for (IntList bucket : buckets.values())
+                bucket.add(clause);
+            return;
+        }
+        IntList bucket = buckets.get(atom);
+        if (bucket == null) {
+            bucket = new IntList(open);
+            buckets.put(atom, bucket);
+        }
+        bucket.add(clause);
+    }
+
+    /**
+     * Returns a copy of the index, which can be modified independently.
+     */
+    ArgumentIndex copy ()
+    {
+        ArgumentIndex copy = new ArgumentIndex(buckets.size());
+        for (int i = 0; i < open.size; i++)
+            copy.open.add(open.items[i]);
+        buckets.forEach((atom, bucket) -> copy.buckets.put(atom, new IntList(bucket)));
+        return copy;
+    }
+
+    /**
+     * Registers the bucket of clauses whose argument at the indexed position is the given atom,
+     * when the index holds no other clause yet (used to load snapshots, see {@link FactSnapshot}).
+     */
+    void addBucket (Integer atom, IntList bucket) {
+        buckets.put(atom, bucket);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the clauses that can match the atom whose canonical box is {@code atom} at the
+     * indexed position, in declaration order. The returned list must not be modified.
+     */
+    IntList lookup (Integer atom) {
+        return buckets.getOrDefault(atom, open);
+    }
+
+    /**
+     * Returns the number of distinct atoms at the indexed position.
+     */
+    int distinct () {
+        return buckets.size();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,174 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.ArithmeticNode;
+
+/**
+ * A constraint of a rule body ({@link ArithmeticNode}), compiled for evaluation by the {@link
+ * QuerySolver}. Its numbers and variables are the arguments of its goal, which the expression
+ * refers to by index: they are looked up when the goal is reached, so a constraint prunes the
+ * search as soon as it is solved.
+ *
+ * <p>An expression whose operands are all integers is an integer, otherwise it is a float ({@code
+ * /} is the integer division on integers). Evaluating a variable that is not bound to a number
+ * is an error ({@link ArithmeticException}), except that {@code ==} and {@code !=} also compare
+ * atoms that are not numbers (which are only equal to themselves).
+ */
+final class Arithmetic
+{
+    // ---------------------------------------------------------------------------------------------
+
+    static final int ARG = 0, ADD = 1, SUB = 2, MUL = 3, DIV = 4, REM = 5,
+        EQ = 6, NE = 7, LT = 8, LE = 9, GT = 10, GE = 11, UNIFY = 12;
+
+    private static final String[] OPERATORS =
+        { null, "+", "-", "*", "/", "%", "==", "!=", "<", "<=", ">", ">=", "=" };
+
+    // ---------------------------------------------------------------------------------------------
+
+    final int op;
+
+    /** For {@link #ARG}, the index of the argument of the goal. */
+    final int arg;
+
+    final Arithmetic left, right;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Arithmetic (int op, int arg, Arithmetic left, Arithmetic right) {
+        this.op = op;
+        this.arg = arg;
+        this.left = left;
+        this.right = right;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a constraint, whose leaves are numbered from left to right (see {@link
+     * ArithmeticNode#leaves}).
+     */
+    static Arithmetic compile (ArithmeticNode node) {
+        return compile(node, new int[1]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Arithmetic compile (Object node, int[] next)
+    {
+        if (!(node instanceof ArithmeticNode))
+            return new Arithmetic(ARG, next[0]++, null, null);
+        ArithmeticNode expression = (ArithmeticNode) node;
+        int op = 1;
+        while (!OPERATORS[op].equals(expression.operator))
+            ++op;
+        Arithmetic left = compile(expression.left, next);
+        Arithmetic right = compile(expression.right, next);
+        return new Arithmetic(op, -1, left, right);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the constraint, whose operator is a comparison, holds for the arguments ({@link
+     * #UNIFY} compares like {@link #EQ}).
+     */
+    boolean holds (Object[] args)
+    {
+        if ((op == EQ || op == NE) && (!numeric(left, args) || !numeric(right, args))) {
+            boolean same = left.op == ARG && right.op == ARG
+                && bound(args[left.arg]) == bound(args[right.arg]);
+            return same == (op == EQ);
+        }
+        Number a = left.eval(args), b = right.eval(args);
+        int cmp = a instanceof Long && b instanceof Long
+            ? Long.compare(a.longValue(), b.longValue())
+            : Double.compare(a.doubleValue(), b.doubleValue());
+        switch (op) {
+            case EQ:
+            case UNIFY: return cmp == 0;
+            case NE: return cmp != 0;
+            case LT: return cmp < 0;
+            case LE: return cmp <= 0;
+            case GT: return cmp > 0;
+            default: return cmp >= 0; // GE
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the expression for the arguments.
+     */
+    Number eval (Object[] args)
+    {
+        if (op == ARG)
+            return number(args[arg]);
+        Number a = left.eval(args), b = right.eval(args);
+        if (a instanceof Long && b instanceof Long) {
+            long x = a.longValue(), y = b.longValue();
+            switch (op) {
+                case ADD: return x + y;
+                case SUB: return x - y;
+                case MUL: return x * y;
+                case DIV: return x / y;
+                default:  return x % y; // REM
+            }
+        }
+        double x = a.doubleValue(), y = b.doubleValue();
+        switch (op) {
+            case ADD: return x + y;
+            case SUB: return x - y;
+            case MUL: return x * y;
+            case DIV: return x / y;
+            default:  return x % y; // REM
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether the expression is not an atom that isn't a number. */
+    private static boolean numeric (Arithmetic expression, Object[] args) {
+        return expression.op != ARG || AtomTable.number(bound(args[expression.arg])) != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Returns the atom that the term is bound to. */
+    private static Integer bound (Object term)
+    {
+        term = QuerySolver.deref(term);
+        if (term instanceof Var)
+            throw new ArithmeticException("unbound variable " + ((Var) term).name);
+        return (Integer) term;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static Number number (Object term)
+    {
+        term = bound(term);
+        Number number = AtomTable.number((Integer) term);
+        if (number == null)
+            throw new ArithmeticException("not a number: " + AtomTable.name((Integer) term));
+        return number;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the atom of the given number.
+     */
+    static Integer atom (Number number) {
+        return AtomTable.box(number instanceof Long
+            ? AtomTable.intern(number.longValue())
+            : AtomTable.intern(number.doubleValue()));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return op == ARG ? "#" + arg : "(" + left + " " + OPERATORS[op] + " " + right + ")";
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
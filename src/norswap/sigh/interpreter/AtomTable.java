@@ -0,0 +1,179 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Global table of the atoms (the string constants of tear blocks and queries), which maps each
+ * distinct atom to an int id, so that facts can be stored and unified on ints.
+ *
+ * <p>Numbers (integers and floats) are atoms too, but typed: the integer {@code 42}, the float
+ * {@code 42.0} and the string {@code "42"} are three distinct atoms. The name of a number is its
+ * text, and its value is given by {@link #number}.
+ *
+ * <p>In the terms manipulated by the {@link QuerySolver}, an atom is represented by the canonical
+ * box of its id, returned by {@link #box}. Since there is only one box per id, two atoms are
+ * equal if and only if their boxes are identical.
+ *
+ * <p>Atoms are never removed from the table. Reads ({@link #name}, {@link #number}, {@link #box})
+ * do not lock.
+ */
+public final class AtomTable
+{
+    // ---------------------------------------------------------------------------------------------
+
+    // Strings for plain atoms, Longs and Doubles for numbers.
+    private static final HashMap<Object, Integer> ids = new HashMap<>();
+
+    // Grown under the lock, then published: readers always see fully initialized entries.
+    private static volatile String[] names = new String[256];
+    private static volatile Integer[] boxes = new Integer[256];
+    private static volatile Number[] numbers = new Number[256];
+
+    private static int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private AtomTable () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the given atom, adding it to the table if it isn't in it yet.
+     */
+    public static int intern (String atom) {
+        return intern(atom, atom, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the given integer, adding it to the table if it isn't in it yet.
+     */
+    public static int intern (long value) {
+        Long number = value;
+        return intern(number, number.toString(), number);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the given float, adding it to the table if it isn't in it yet.
+     */
+    public static int intern (double value) {
+        Double number = value;
+        return intern(number, number.toString(), number);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the atom whose name is the given text, adding it to the table if it isn't
+     * in it yet: the number of which the text is the canonical form ({@code 42}, {@code -7}, {@code
+     * 2.5}, but not {@code 042} or {@code 2.50}), or else the string itself. This is how terms
+     * given as text (outside of tear blocks) are read, and the inverse of {@link #name}.
+     */
+    public static int parse (String text)
+    {
+        if (!text.isEmpty()) {
+            char c = text.charAt(0);
+            if (c == '-' || c >= '0' && c <= '9') {
+                try {
+                    if (text.indexOf('.') < 0) {
+                        long value = Long.parseLong(text);
+                        if (Long.toString(value).equals(text))
+                            return intern(value);
+                    } else {
+                        double value = Double.parseDouble(text);
+                        if (Double.toString(value).equals(text))
+                            return intern(value);
+                    }
+                } catch (NumberFormatException e) {
+                    // not a number
+                }
+            }
+        }
+        return intern(text);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int intern (Object key, String name, Number number)
+    {
+        synchronized (ids) {
+            Integer id = ids.get(key);
+            if (id != null)
+                return id;
+
+            String[] names = AtomTable.names;
+            Integer[] boxes = AtomTable.boxes;
+            Number[] numbers = AtomTable.numbers;
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                boxes = Arrays.copyOf(boxes, size * 2);
+                numbers = Arrays.copyOf(numbers, size * 2);
+            }
+            id = size;
+            names[size] = name;
+            boxes[size] = id;
+            numbers[size] = number;
+            ++size;
+            AtomTable.names = names;
+            AtomTable.boxes = boxes;
+            AtomTable.numbers = numbers;
+            ids.put(key, id);
+            return id;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the canonical box of the id of the given atom, adding it to the table if it isn't in
+     * it yet.
+     */
+    public static Integer atom (String atom) {
+        return box(intern(atom));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the atom with the given id.
+     */
+    public static String name (int id) {
+        return names[id];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the value of the number with the given id (a {@link Long} or a {@link Double}), or
+     * null if the atom is not a number.
+     */
+    public static Number number (int id) {
+        return numbers[id];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the canonical box of the given id.
+     */
+    public static Integer box (int id) {
+        return boxes[id];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the number of atoms in the table.
+     */
+    public static int size () {
+        synchronized (ids) {
+            return size;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,365 @@
+package norswap.sigh.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Derives every fact that follows from the clauses of a {@link RuleStorage}, bottom-up, and
+ * writes them back into the storage (see {@link RuleStorage#materialize}). This is an alternative
+ * to solving queries goal by goal with the {@link QuerySolver}, which pays off when many queries
+ * are asked against the same clauses: afterwards, queries are plain lookups.
+ *
+ * <p>Evaluation is semi-naive: each round only considers the derivations that use at least one
+ * fact derived in the previous round (the delta). The body of a rule is evaluated as a sequence of
+ * hash joins on the variables shared with the previous goals, using a {@link RelationIndex} on the
+ * bound columns of each goal.
+ *
+ * <p>Each branch of a rule (see {@link Clause#branches}) is evaluated as a conjunction, like in the
+ * solver. A rule with a branch that doesn't bind every variable of the head cannot be evaluated
+ * bottom-up, nor can a rule whose body contains a control construct (cut, negation or once),
+ * whose meaning depends on the order of the search, or a constraint, which could derive infinitely
+ * many numbers: its predicate (and the predicates that depend on it) are left to the solver.
+ */
+final class BottomUpEvaluator
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** A goal of the body of a rule, compiled against the variables of the rule. */
+    private static final class Goal
+    {
+        final Relation relation;
+        /** Atom id for a constant, {@code -(slot+1)} for a variable. */
+        final int[] args;
+        /** Columns bound when the goal is reached: the columns of {@link #index}. */
+        final int[] bound;
+        final RelationIndex index;
+        final int[] key;
+        /** The delta of the relation (see {@link #deltas}). */
+        final int[] delta;
+
+        Goal (Relation relation, int[] args, int[] bound, RelationIndex index, int[] delta) {
+            this.relation = relation;
+            this.args = args;
+            this.bound = bound;
+            this.index = index;
+            this.key = new int[bound.length];
+            this.delta = delta;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** A rule compiled for bottom-up evaluation. */
+    private static final class Plan
+    {
+        final Relation head;
+        /** Slot of the variable of each head argument. */
+        final int[] head_slots;
+        final Goal[] body;
+        final int slots;
+
+        Plan (Relation head, int[] head_slots, Goal[] body, int slots) {
+            this.head = head;
+            this.head_slots = head_slots;
+            this.body = body;
+            this.slots = slots;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final RuleStorage storage;
+    private final HashMap<Functor, Relation> relations = new HashMap<>();
+    private final HashMap<Relation, HashMap<String, RelationIndex>> indexes = new HashMap<>();
+    private final List<Plan> plans = new ArrayList<>();
+
+    // The tuples of each relation that were derived in the previous round are those whose id is in
+    // [delta[0], delta[1]). Initially, all the tuples of the relation.
+    private final HashMap<Relation, int[]> deltas = new HashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    BottomUpEvaluator (RuleStorage storage) {
+        this.storage = storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Derives all facts, and adds the facts that were derived for each predicate defined by rules
+     * to the storage, at the given version. Returns the number of facts added.
+     */
+    int run (int version)
+    {
+        HashSet<Functor> derived = derivable();
+        for (Functor functor : derived)
+            for (Rule rule : storage.getPredicate(functor).rules())
+                for (int[] branch : rule.clause.branches)
+                    plans.add(plan(rule, branch));
+
+        // Facts in the storage (not derived) have been loaded into the relations.
+        HashMap<Functor, Integer> loaded = new HashMap<>();
+        for (Map.Entry<Functor, Relation> entry : relations.entrySet())
+            loaded.put(entry.getKey(), entry.getValue().count);
+
+        while (round()) {}
+
+        int added = 0;
+        for (Functor functor : derived) {
+            Relation relation = relations.get(functor);
+            storage.writable(functor).materialize(relation, loaded.get(functor), version);
+            added += relation.count - loaded.get(functor);
+        }
+        return added;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the predicates that are defined by rules and can be evaluated bottom-up.
+     */
+    private HashSet<Functor> derivable ()
+    {
+        HashSet<Functor> derived = new HashSet<>();
+        HashSet<Functor> excluded = new HashSet<>();
+        for (Predicate predicate : storage.predicates())
+            if (!predicate.rules().isEmpty())
+                derived.add(predicate.functor);
+
+        for (Functor functor : derived)
+            for (Rule rule : storage.getPredicate(functor).rules())
+                if (!range_restricted(rule) || rule.clause.controlled || rule.clause.evaluates)
+                    excluded.add(functor);
+
+        boolean changed = !excluded.isEmpty();
+        while (changed) {
+            changed = false;
+            for (Functor functor : derived) {
+                if (excluded.contains(functor))
+                    continue;
+                for (Rule rule : storage.getPredicate(functor).rules())
+                    if (rule.tail_functors.stream().anyMatch(excluded::contains)) {
+                        excluded.add(functor);
+                        changed = true;
+                        break;
+                    }
+            }
+        }
+        derived.removeAll(excluded);
+        return derived;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static boolean range_restricted (Rule rule)
+    {
+        Clause clause = rule.clause;
+        for (int[] branch : clause.branches) {
+            boolean[] in_body = new boolean[clause.var_count];
+            for (int tail : branch)
+                for (int arg : clause.args[tail])
+                    if (arg < 0)
+                        in_body[-arg - 1] = true;
+            for (int slot : clause.head)
+                if (!in_body[slot])
+                    return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the relation of the predicate, creating it (and loading the facts of the predicate
+     * into it) if needed.
+     */
+    private Relation relation (Functor functor)
+    {
+        Relation relation = relations.get(functor);
+        if (relation != null)
+            return relation;
+
+        relation = new Relation(functor.arity);
+        relations.put(functor, relation);
+        int[] delta = new int[2];
+        deltas.put(relation, delta);
+        Predicate predicate = storage.getPredicate(functor);
+        if (predicate != null) {
+            int[][] columns = predicate.columns();
+            int[] tuple = new int[functor.arity];
+            for (int row = 0; row < predicate.rowCount(); row++) {
+                if (!predicate.alive(row))
+                    continue;
+                for (int i = 0; i < tuple.length; i++)
+                    tuple[i] = columns[i][row];
+                relation.add(tuple, 0);
+            }
+        }
+        delta[1] = relation.count;
+        return relation;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private RelationIndex index (Relation relation, int[] columns)
+    {
+        StringBuilder key = new StringBuilder();
+        for (int column : columns)
+            key.append(column).append(',');
+        return indexes
+            .computeIfAbsent(relation, k -> new HashMap<>())
+            .computeIfAbsent(key.toString(), k -> new RelationIndex(relation, columns));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a branch of the rule, given by the indices of its tails.
+     */
+    private Plan plan (Rule rule, int[] branch)
+    {
+        Clause clause = rule.clause;
+        boolean[] known = new boolean[clause.var_count];
+        Goal[] body = new Goal[branch.length];
+
+        for (int i = 0; i < body.length; i++) {
+            int[] args = clause.args[branch[i]];
+            // Variables that first appear in this goal are bound by the goal itself: a repeated
+            // one is checked against the tuple, but not used as a key.
+            List<Integer> bound = new ArrayList<>();
+            for (int j = 0; j < args.length; j++)
+                if (args[j] >= 0 || known[-args[j] - 1])
+                    bound.add(j);
+            for (int arg : args)
+                if (arg < 0)
+                    known[-arg - 1] = true;
+
+            int[] columns = bound.stream().mapToInt(it -> it).toArray();
+            Relation relation = relation(clause.tails[branch[i]]);
+            body[i] = new Goal(relation, args, columns, index(relation, columns),
+                deltas.get(relation));
+        }
+        return new Plan(relation(rule.functor), clause.head, body, clause.var_count);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Runs a round of semi-naive evaluation, and returns true if new facts were derived.
+     */
+    private boolean round ()
+    {
+        // Only tuples derived before the round are joined: the indexes need not see the others.
+        for (HashMap<String, RelationIndex> relation_indexes : indexes.values())
+            for (RelationIndex index : relation_indexes.values())
+                index.update();
+
+        for (Plan plan : plans) {
+            int[] env = new int[plan.slots];
+            int[] head = new int[plan.head.arity];
+            for (int j = 0; j < plan.body.length; j++) {
+                int[] delta = plan.body[j].delta;
+                if (delta[0] < delta[1])
+                    join(plan, j, 0, env, head);
+            }
+        }
+
+        boolean changed = false;
+        for (Map.Entry<Relation, int[]> entry : deltas.entrySet()) {
+            int[] delta = entry.getValue();
+            delta[0] = delta[1];
+            delta[1] = entry.getKey().count;
+            changed |= delta[0] < delta[1];
+        }
+        return changed;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Joins the goals of the plan from the i-th onwards, with the variables bound so far in {@code
+     * env}. The {@code delta}-th goal ranges over the delta of its relation, the goals before it
+     * over the tuples derived before the previous round, and the goals after it over all the tuples
+     * derived before the current round.
+     */
+    private void join (Plan plan, int delta, int i, int[] env, int[] head)
+    {
+        if (i == plan.body.length) {
+            for (int j = 0; j < head.length; j++)
+                head[j] = env[plan.head_slots[j]];
+            plan.head.add(head, 0);
+            return;
+        }
+
+        Goal goal = plan.body[i];
+        int start = i == delta ? goal.delta[0] : 0;
+        int end   = i < delta ? goal.delta[0] : goal.delta[1];
+        if (start >= end)
+            return;
+
+        int[] tuples = goal.relation.tuples;
+        int arity = goal.relation.arity;
+
+        if (goal.bound.length == 0) {
+            for (int t = start; t < end; t++)
+                if (bind(goal, tuples, t * arity, env))
+                    join(plan, delta, i + 1, env, head);
+            return;
+        }
+
+        for (int k = 0; k < goal.bound.length; k++) {
+            int arg = goal.args[goal.bound[k]];
+            goal.key[k] = arg >= 0 ? arg : env[-arg - 1];
+        }
+        // Tuples are chained from the most recent: skip those after the range, stop before it.
+        for (int t = goal.index.first(goal.key); t >= start; t = goal.index.next(t))
+            if (t < end && bind(goal, tuples, t * arity, env))
+                join(plan, delta, i + 1, env, head);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the tuple at {@code offset} matches the goal, and binds the variables that first
+     * appear in the goal. The variables bound by previous goals keep their values.
+     */
+    private static boolean bind (Goal goal, int[] tuples, int offset, int[] env)
+    {
+        int[] args = goal.args;
+        int[] bound = goal.bound;
+        int b = 0;
+        for (int j = 0; j < args.length; j++) {
+            int value = tuples[offset + j];
+            if (b < bound.length && bound[b] == j) {
+                ++b;
+                int expected = args[j] >= 0 ? args[j] : env[-args[j] - 1];
+                if (value != expected)
+                    return false;
+                continue;
+            }
+            // a variable that first appears in this goal: the first occurrence binds it
+            int slot = -args[j] - 1;
+            int first = first_occurrence(args, j);
+            if (first == j)
+                env[slot] = value;
+            else if (env[slot] != value)
+                return false;
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int first_occurrence (int[] args, int j)
+    {
+        for (int k = 0; k < j; k++)
+            if (args[k] == args[j])
+                return k;
+        return j;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,27 @@
+package norswap.sigh.interpreter;
+
+/**
+ * Lets a thread cancel the queries that were started with the token (see {@link
+ * QueryLimits#token}). The queries notice it at their next check, and abort with a {@link
+ * QueryLimitException}. A token cannot be reset: each cancellable batch of queries needs its own.
+ */
+public final class CancellationToken
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private volatile boolean cancelled = false;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Cancels the queries that use this token. */
+    public void cancel () {
+        cancelled = true;
+    }
+
+    /** Whether the token has been cancelled. */
+    public boolean cancelled () {
+        return cancelled;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
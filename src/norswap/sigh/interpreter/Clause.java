@@ -0,0 +1,258 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.ArithmeticNode;
+import norswap.sigh.ast.FloatLiteralNode;
+import norswap.sigh.ast.IntLiteralNode;
+import norswap.sigh.ast.QueryArgNode;
+import norswap.sigh.ast.StringLiteralNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A {@link Rule} compiled once, when it is declared, into the form used to solve it: the solver
+ * never walks the {@link QueryArgNode}s of the rule.
+ *
+ * <p>The variables of the rule are numbered from 0 in order of first occurrence (head first), so
+ * that the bindings of a call can be kept in an array of {@link #var_count} slots. Arguments are
+ * encoded as one int: the {@link AtomTable} id of an atom, or {@code -(slot+1)} for a variable.
+ *
+ * <p>{@code AND} binds tighter than {@code OR}, so the body is a disjunction of {@link #branches},
+ * each a conjunction of tails. A disjunctive body is also compiled into a {@link Body} tree, in
+ * which the goals that branches start with are shared: {@code p(X) := a(X) AND b(X) OR a(X) AND
+ * c(X).} becomes {@code a(X)} followed by the alternatives {@code b(X)} and {@code c(X)}, so that
+ * {@code a(X)} is solved once for both.
+ */
+final class Clause
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final Functor functor;
+    final int var_count;
+
+    /** Name of each variable, by slot. */
+    final String[] var_names;
+
+    /** Slot of the variable at each argument position of the head. */
+    final int[] head;
+
+    /** Functor of each tail. */
+    final Functor[] tails;
+
+    /** Encoded arguments of each tail. */
+    final int[][] args;
+
+    /** Control construct of each tail ({@link QueryArg#GOAL} for a plain goal). */
+    final int[] controls;
+
+    /** The constraint of each tail whose control is {@link QueryArg#EVAL} (null for the others). */
+    final Arithmetic[] constraints;
+
+    /** Whether the body contains a control construct (cut, negation or once). */
+    final boolean controlled;
+
+    /** Whether the body contains a constraint. */
+    final boolean evaluates;
+
+    /** Indices of the tails of each branch of the body, a single one if it has no {@code OR}. */
+    final int[][] branches;
+
+    /** The body as a tree of shared prefixes, or null if it has a single branch. */
+    final Body body;
+
+    /** Functor of the cut, which has no predicate. */
+    static final Functor CUT = Functor.of(QueryArgNode.CUT, 0);
+
+    /** Functor of a disjunction goal, which has no predicate. */
+    static final Functor OR = Functor.of("OR", 0);
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * A node of the tree of a disjunctive body: goals (indices of tails) solved in sequence, then
+     * one of the @alternatives (null for a leaf).
+     */
+    static final class Body
+    {
+        final int[] goals;
+        final Body[] alternatives;
+
+        Body (int[] goals, Body[] alternatives) {
+            this.goals = goals;
+            this.alternatives = alternatives;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Clause (Functor functor, String[] var_names, int[] head, Functor[] tails, int[][] args,
+            int[] controls, Arithmetic[] constraints, int[][] branches) {
+        this.functor = functor;
+        this.var_count = var_names.length;
+        this.var_names = var_names;
+        this.head = head;
+        this.tails = tails;
+        this.args = args;
+        this.controls = controls;
+        this.constraints = constraints;
+        boolean controlled = false, evaluates = false;
+        for (int control : controls) {
+            evaluates |= control == QueryArg.EVAL;
+            controlled |= control != QueryArg.GOAL && control != QueryArg.EVAL;
+        }
+        this.controlled = controlled;
+        this.evaluates = evaluates;
+        this.branches = branches;
+        this.body = branches.length == 1 ? null : body(branches, 0, branches.length, 0);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Compiles a rule, whose head arguments are all variables.
+     */
+    static Clause compile (Rule rule)
+    {
+        HashMap<String, Integer> slots = new HashMap<>();
+        int[] head = encode(rule.head_args, slots);
+        for (int i = 0; i < head.length; i++)
+            head[i] = -head[i] - 1;
+
+        Functor[] tails = rule.tail_functors.toArray(new Functor[0]);
+        int[][] args = new int[tails.length][];
+        int[] controls = new int[tails.length];
+        Arithmetic[] constraints = new Arithmetic[tails.length];
+        for (int i = 0; i < args.length; i++) {
+            QueryArgNode tail = rule.tails.get(i);
+            args[i] = encode(tail.arg_list, slots);
+            controls[i] = control(tail.control);
+            if (controls[i] == QueryArg.EVAL)
+                constraints[i] = Arithmetic.compile((ArithmeticNode) tail.expression);
+        }
+
+        String[] var_names = new String[slots.size()];
+        slots.forEach((name, slot) -> var_names[slot] = name);
+        return new Clause(rule.functor, var_names, head, tails, args, controls, constraints,
+            branches(tails.length, rule.logic_operands));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Splits the tails at the {@code OR} operators. The operator at index i stands between tails
+     * i and i+1 (a missing operator is an {@code AND}).
+     */
+    private static int[][] branches (int tail_count, List<String> operands)
+    {
+        List<int[]> branches = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < tail_count; i++) {
+            String operand = operands != null && i < operands.size() ? operands.get(i) : null;
+            if (i == tail_count - 1 || operand != null && operand.trim().equals("OR")) {
+                int[] branch = new int[i + 1 - start];
+                for (int j = 0; j < branch.length; j++)
+                    branch[j] = start + j;
+                branches.add(branch);
+                start = i + 1;
+            }
+        }
+        if (branches.isEmpty())
+            branches.add(new int[0]);
+        return branches.toArray(new int[0][]);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Builds the tree of the branches in [from, to), which are identical in their first {@code
+     * depth} goals. Only adjacent branches are grouped, so that solutions keep the order in which
+     * the branches are written. Nothing is shared when the body has control constructs, whose
+     * meaning depends on the exact sequence of goals.
+     */
+    private Body body (int[][] branches, int from, int to, int depth)
+    {
+        // the length of the prefix shared by all the branches
+        int shared = depth;
+        if (!controlled && to - from > 1) {
+            prefix: while (shared < branches[from].length) {
+                for (int b = from + 1; b < to; b++)
+                    if (shared >= branches[b].length
+                            || !same(branches[from][shared], branches[b][shared]))
+                        break prefix;
+                ++shared;
+            }
+        }
+        int[] goals = Arrays.copyOfRange(branches[from], depth, shared);
+        if (to - from == 1)
+            return new Body(Arrays.copyOfRange(branches[from], depth, branches[from].length), null);
+
+        // group the adjacent branches that continue with the same goal
+        List<Body> alternatives = new ArrayList<>();
+        for (int b = from; b < to; ) {
+            int end = b + 1;
+            if (!controlled && shared < branches[b].length)
+                while (end < to && shared < branches[end].length
+                        && same(branches[b][shared], branches[end][shared]))
+                    ++end;
+            alternatives.add(body(branches, b, end, shared));
+            b = end;
+        }
+        return new Body(goals, alternatives.toArray(new Body[0]));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Whether two tails are the same goal. */
+    private boolean same (int tail1, int tail2) {
+        return tails[tail1].equals(tails[tail2])
+            && controls[tail1] == controls[tail2]
+            && Arrays.equals(args[tail1], args[tail2])
+            && String.valueOf(constraints[tail1]).equals(String.valueOf(constraints[tail2]));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int control (String control)
+    {
+        if (control == null)
+            return QueryArg.GOAL;
+        switch (control) {
+            case QueryArgNode.CUT: return QueryArg.CUT;
+            case QueryArgNode.NOT:  return QueryArg.NOT;
+            case QueryArgNode.EVAL: return QueryArg.EVAL;
+            default:                return QueryArg.ONCE;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int[] encode (List<?> args, HashMap<String, Integer> slots)
+    {
+        int[] codes = new int[args.size()];
+        for (int i = 0; i < codes.length; i++) {
+            Object arg = args.get(i);
+            codes[i] = arg instanceof String
+                ? -slots.computeIfAbsent((String) arg, k -> slots.size()) - 1
+                : atom(arg);
+        }
+        return codes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the {@link AtomTable} id of a term that is a string or a number.
+     */
+    static int atom (Object term)
+    {
+        if (term instanceof IntLiteralNode)
+            return AtomTable.intern(((IntLiteralNode) term).value);
+        if (term instanceof FloatLiteralNode)
+            return AtomTable.intern(((FloatLiteralNode) term).value);
+        return AtomTable.intern(((StringLiteralNode) term).value);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
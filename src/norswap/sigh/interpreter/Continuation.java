@@ -0,0 +1,16 @@
+package norswap.sigh.interpreter;
+
+/**
+ * Immutable linked list of the goals left to solve, first goal first.
+ * Choice points keep a reference to the continuation they resume, which is shared rather than
+ * copied: solving a goal only ever prepends the goals of a rule body to the remaining goals.
+ */
+final class Continuation {
+    final QueryArg goal;
+    final Continuation next;
+
+    Continuation(QueryArg goal, Continuation next) {
+        this.goal = goal;
+        this.next = next;
+    }
+}
@@ -1,39 +1,34 @@
 package norswap.sigh.interpreter;
 
-import norswap.sigh.ast.QueryArgNode;
-
-import java.util.List;
-import java.util.Objects;
-
 /**
  *
- *  DataStructure to store the execution state
- *  @goals is the goals left to be satisfied
- *  @rules is the rules left to try for the current goal
- *  @bindings is the current set of bindings
+ *  DataStructure to store the execution state (a choice point)
+ *  @goals is the goals left to be satisfied, the first one being the goal with alternatives left
+ *  @clauses is the references of the clauses that can match the first goal (see {@link Predicate})
+ *  @table is the answer table of the first goal, if it is tabled (clauses is then a marker)
+ *  @next is the index in clauses (or in the answers of table) of the next clause to try
+ *  @trail_mark is the size of the trail when the choice point was created
  *
+ *  Execution states are recycled by the QuerySolver, hence the mutable fields.
  */
-public class ExecutionState {
-    private List<QueryArg> goals;
-    private List<Rule> rules;
-    private List<List<BoundedPair>> bindings;
-
-    public ExecutionState(List<QueryArg> goals, List<Rule> rules, List<List<BoundedPair>> bindings) {
+final class ExecutionState {
+    Continuation goals;
+    IntList clauses;
+    Table table;
+    int next;
+    int trail_mark;
+
+    void set(Continuation goals, IntList clauses, Table table, int next, int trail_mark) {
         this.goals = goals;
-        this.rules = rules;
-        this.bindings = bindings;
-    }
-
-    public List<QueryArg> getGoals() {
-        return goals;
-    }
-
-    public List<Rule> getRules() {
-        return rules;
+        this.clauses = clauses;
+        this.table = table;
+        this.next = next;
+        this.trail_mark = trail_mark;
     }
 
-    public List<List<BoundedPair>> getBindings() {
-        return bindings;
+    void clear() {
+        this.goals = null;
+        this.clauses = null;
+        this.table = null;
     }
-
 }
@@ -0,0 +1,192 @@
+package norswap.sigh.interpreter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Loads ground facts from a delimited text file (CSV, TSV, ...) straight into the columnar store
+ * of a predicate, without going through the parser (see {@link RuleStorage#loadFacts}).
+ *
+ * <p>Each non-empty line is a fact, and each field one of its terms (an atom). All lines must have
+ * the same number of fields, which is the arity of the predicate. The file is read in UTF-8, in
+ * fixed-size chunks through a {@link FileChannel}, and split by a byte-level state machine: only
+ * the fields themselves are decoded into strings, to be interned in the {@link AtomTable}.
+ *
+ * <p>If {@code quotes} is set (CSV), a field may be enclosed in double quotes, in which case it can
+ * contain the delimiter, line breaks, and double quotes written twice. Carriage returns outside of
+ * quoted fields are ignored.
+ *
+ * <p>A field that is not quoted and is written as a number in its canonical form ({@code 42}, {@code
+ * -7}, {@code 2.5}, but not {@code 042} or {@code 2.50}) is loaded as that number (see {@link
+ * AtomTable#parse}), so that it can be used in constraints. Quote it to load it as a string (which
+ * is not possible in files without quotes, such as TSV).
+ */
+final class FactLoader
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final Path file;
+    private final byte delimiter;
+    private final boolean quotes;
+
+    // the field being read
+    private byte[] field = new byte[64];
+    private int field_size = 0;
+    // whether the field being read is (or was) quoted, and if we are inside the quotes
+    private boolean quoted = false;
+    private boolean in_quotes = false;
+    // whether the last byte was a quote that closed the quotes, or is the first of a doubled quote
+    private boolean quote_pending = false;
+
+    // the fields of the line being read
+    private int[] atoms = new int[8];
+    private int fields = 0;
+    private int line = 1;
+
+    private int arity = -1;
+    private Predicate predicate;
+    private int version;
+    private final RuleStorage storage;
+    private final String name;
+    private boolean skip;
+    private int loaded = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    FactLoader (RuleStorage storage, String name, Path file, char delimiter, boolean header) {
+        this.storage = storage;
+        this.name = name;
+        this.file = file;
+        this.delimiter = (byte) delimiter;
+        this.quotes = delimiter != '\t';
+        this.skip = header;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Loads the facts of the file at the given version, and returns their number.
+     */
+    int load (int version) throws IOException
+    {
+        this.version = version;
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        byte[] bytes = buffer.array();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            int read;
+            while ((read = channel.read(buffer)) >= 0) {
+                for (int i = 0; i < read; i++)
+                    accept(bytes[i]);
+                buffer.clear();
+            }
+        }
+        if (in_quotes)
+            throw error("unterminated quoted field");
+        if (quote_pending || field_size > 0 || fields > 0 || quoted)
+            end_line();
+        return loaded;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void accept (byte b) throws IOException
+    {
+        if (quote_pending) {
+            quote_pending = false;
+            if (b == '"') { // doubled quote
+                append(b);
+                in_quotes = true;
+                return;
+            }
+        }
+        if (in_quotes) {
+            if (b == '"') {
+                in_quotes = false;
+                quote_pending = true;
+            } else {
+                if (b == '\n') ++line;
+                append(b);
+            }
+        } else if (b == delimiter) {
+            end_field();
+        } else if (b == '\n') {
+            end_line();
+            ++line;
+        } else if (b == '"' && quotes && field_size == 0 && !quoted) {
+            quoted = in_quotes = true;
+        } else if (b != '\r') {
+            if (quoted)
+                throw error("unexpected character after a quoted field");
+            append(b);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void append (byte b)
+    {
+        if (field_size == field.length)
+            field = Arrays.copyOf(field, field_size * 2);
+        field[field_size++] = b;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void end_field ()
+    {
+        if (fields == atoms.length)
+            atoms = Arrays.copyOf(atoms, fields * 2);
+        atoms[fields++] = skip
+            ? 0
+            : atom(new String(field, 0, field_size, StandardCharsets.UTF_8), quoted);
+        field_size = 0;
+        quoted = false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int atom (String text, boolean quoted)
+    {
+        return quoted ? AtomTable.intern(text) : AtomTable.parse(text);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void end_line () throws IOException
+    {
+        if (fields == 0 && field_size == 0 && !quoted)
+            return; // empty line
+        end_field();
+
+        if (arity < 0) {
+            arity = fields;
+            predicate = storage.writable(Functor.of(name, arity));
+        } else if (fields != arity) {
+            throw error("expected " + arity + " fields but got " + fields);
+        }
+        if (skip) {
+            skip = false;
+        } else {
+            predicate.addFact(Arrays.copyOf(atoms, arity), version);
+            ++loaded;
+        }
+        fields = 0;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private IOException error (String message) {
+        return new IOException(file + ":" + line + ": " + message);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
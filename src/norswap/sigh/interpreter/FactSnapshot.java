@@ -0,0 +1,350 @@
+package norswap.sigh.interpreter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary snapshot of the facts of a {@link RuleStorage}: the atom table, and for each predicate,
+ * its fact columns and the buckets of its argument indexes (see {@link RuleStorage#writeSnapshot}
+ * and {@link RuleStorage#readSnapshot}).
+ *
+ * <p>This is a fast binary load, not a store that is queried in place. The file is read through
+ * memory mappings, and its sections are laid out so that they can be copied in bulk into the
+ * {@code int[]} columns and {@link IntList} buckets of the store: reading it does not parse
+ * anything, and does not hash the facts one by one. Reading still takes time linear in the
+ * number of facts, and each process that reads the file keeps its own copy of the facts on its
+ * heap: nothing is shared between processes. Only the atoms must be interned, since their ids are
+ * global to the process. If the ids of the file match those of the {@link AtomTable} (e.g. when
+ * the snapshot is read before any other atom is interned), the columns are copied as is.
+ *
+ * <p>Rules and tabling declarations are not part of the snapshot, nor are the facts derived by
+ * {@link RuleStorage#materialize} and the retracted facts.
+ *
+ * <p>Layout (all ints are little-endian):
+ * <pre>
+ * magic, format version, atom count
+ * atom byte offsets (atom count + 1 ints), UTF-8 bytes of the atoms, padding to 4 bytes
+ * atom kinds (atom count bytes: 0 for a string, 1 for an integer, 2 for a float), padding
+ * predicate count
+ * for each predicate:
+ *     name length, UTF-8 bytes of the name, padding to 4 bytes, arity, fact count
+ *     each column (fact count ints)
+ *     for each column: bucket count, atoms (bucket count ints),
+ *         bucket offsets (bucket count + 1 ints), rows (fact count ints)
+ * </pre>
+ */
+final class FactSnapshot
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final int MAGIC = 0x52414554; // "TEAR"
+    private static final int FORMAT = 2;
+
+    private static final byte STRING = 0, INTEGER = 1, FLOAT = 2;
+
+    /** Size of the write buffer, and of the mappings over which single ints are read. */
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final long MAX_MAPPING = Integer.MAX_VALUE & ~3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private FactSnapshot () {}
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Writes the facts of the storage to the file, and returns their number.
+     */
+    static int write (RuleStorage storage, Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            out.put(MAGIC);
+            out.put(FORMAT);
+
+            int atom_count = AtomTable.size();
+            byte[][] atoms = new byte[atom_count][];
+            out.put(atom_count);
+            int offset = 0;
+            out.put(offset);
+            for (int id = 0; id < atom_count; id++) {
+                atoms[id] = AtomTable.name(id).getBytes(StandardCharsets.UTF_8);
+                offset += atoms[id].length;
+                out.put(offset);
+            }
+            for (byte[] atom : atoms)
+                out.put(atom);
+            out.align();
+            byte[] kinds = new byte[atom_count];
+            for (int id = 0; id < atom_count; id++) {
+                Number number = AtomTable.number(id);
+                kinds[id] = number == null ? STRING : number instanceof Long ? INTEGER : FLOAT;
+            }
+            out.put(kinds);
+            out.align();
+
+            List<Predicate> predicates = new ArrayList<>();
+            for (Predicate predicate : storage.predicates())
+                if (predicate.factCount() > 0)
+                    predicates.add(predicate);
+            out.put(predicates.size());
+
+            int total = 0;
+            for (Predicate predicate : predicates)
+                total += write(predicate, out);
+            out.flush();
+            return total;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int write (Predicate predicate, Output out) throws IOException
+    {
+        // the rows of the declared facts that have not been retracted, renumbered from 0
+        IntList rows = new IntList(Math.max(predicate.factCount(), 4));
+        for (int row = 0; row < predicate.declaredRowCount(); row++)
+            if (predicate.alive(row))
+                rows.add(row);
+        int count = rows.size;
+
+        byte[] name = predicate.functor.name.getBytes(StandardCharsets.UTF_8);
+        out.put(name.length);
+        out.put(name);
+        out.align();
+        out.put(predicate.functor.arity);
+        out.put(count);
+
+        int[][] columns = predicate.columns();
+        for (int[] column : columns)
+            for (int k = 0; k < count; k++)
+                out.put(column[rows.items[k]]);
+
+        // the index buckets, by ascending atom id, each listing its rows in ascending order
+        long[] keys = new long[count];
+        for (int[] column : columns) {
+            for (int k = 0; k < count; k++)
+                keys[k] = (long) column[rows.items[k]] << 32 | k;
+            Arrays.sort(keys);
+            int buckets = 0;
+            for (int k = 0; k < count; k++)
+                if (k == 0 || keys[k] >>> 32 != keys[k - 1] >>> 32)
+                    ++buckets;
+            out.put(buckets);
+            for (int k = 0; k < count; k++)
+                if (k == 0 || keys[k] >>> 32 != keys[k - 1] >>> 32)
+                    out.put((int) (keys[k] >>> 32));
+            for (int k = 0; k < count; k++)
+                if (k == 0 || keys[k] >>> 32 != keys[k - 1] >>> 32)
+                    out.put(k);
+            out.put(count);
+            for (int k = 0; k < count; k++)
+                out.put((int) keys[k]);
+        }
+        return count;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Buffered little-endian output to a channel.
+     */
+    private static final class Output
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer =
+            ByteBuffer.allocateDirect(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = 0;
+
+        Output (FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void put (int value) throws IOException {
+            if (buffer.remaining() < 4) flush();
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void put (byte[] bytes) throws IOException
+        {
+            for (int i = 0; i < bytes.length; ) {
+                if (!buffer.hasRemaining()) flush();
+                int n = Math.min(buffer.remaining(), bytes.length - i);
+                buffer.put(bytes, i, n);
+                i += n;
+            }
+            position += bytes.length;
+        }
+
+        void align () throws IOException {
+            while (position % 4 != 0)
+                put(new byte[1]);
+        }
+
+        void flush () throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the facts of the file to the storage at the given version, and returns their number.
+     */
+    static int read (RuleStorage storage, Path file, int version) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Input in = new Input(channel, file);
+            if (in.get() != MAGIC)
+                throw in.error("not a fact snapshot");
+            if (in.get() != FORMAT)
+                throw in.error("unsupported snapshot format");
+
+            int atom_count = in.get();
+            IntBuffer offsets = in.ints(atom_count + 1);
+            ByteBuffer bytes = in.bytes(offsets.get(atom_count));
+            ByteBuffer kinds = in.bytes(atom_count);
+            int[] ids = new int[atom_count];
+            boolean identity = true;
+            byte[] atom = new byte[64];
+            for (int i = 0; i < atom_count; i++) {
+                int size = offsets.get(i + 1) - offsets.get(i);
+                if (size > atom.length) atom = new byte[size * 2];
+                bytes.get(atom, 0, size);
+                String name = new String(atom, 0, size, StandardCharsets.UTF_8);
+                try {
+                    switch (kinds.get(i)) {
+                        case STRING:  ids[i] = AtomTable.intern(name); break;
+                        case INTEGER: ids[i] = AtomTable.intern(Long.parseLong(name)); break;
+                        case FLOAT:   ids[i] = AtomTable.intern(Double.parseDouble(name)); break;
+                        default:      throw in.error("corrupted snapshot");
+                    }
+                } catch (NumberFormatException e) {
+                    throw in.error("corrupted snapshot");
+                }
+                identity &= ids[i] == i;
+            }
+
+            int predicate_count = in.get();
+            int total = 0;
+            for (int p = 0; p < predicate_count; p++) {
+                byte[] name = new byte[in.get()];
+                in.bytes(name.length).get(name);
+                Functor functor = Functor.of(new String(name, StandardCharsets.UTF_8), in.get());
+                int count = in.get();
+
+                int[][] columns = new int[functor.arity][];
+                for (int i = 0; i < columns.length; i++) {
+                    columns[i] = new int[Math.max(count, 4)];
+                    in.ints(count).get(columns[i], 0, count);
+                    if (!identity)
+                        for (int k = 0; k < count; k++)
+                            columns[i][k] = ids[columns[i][k]];
+                }
+
+                ArgumentIndex[] indexes = new ArgumentIndex[functor.arity];
+                for (int i = 0; i < indexes.length; i++) {
+                    int buckets = in.get();
+                    indexes[i] = new ArgumentIndex(buckets);
+                    IntBuffer atoms = in.ints(buckets);
+                    IntBuffer bounds = in.ints(buckets + 1);
+                    IntBuffer rows = in.ints(count);
+                    for (int b = 0; b < buckets; b++) {
+                        int from = bounds.get(b);
+                        IntList bucket = new IntList(Math.max(bounds.get(b + 1) - from, 4));
+                        bucket.size = bounds.get(b + 1) - from;
+                        rows.position(from);
+                        rows.get(bucket.items, 0, bucket.size);
+                        indexes[i].addBucket(AtomTable.box(ids[atoms.get(b)]), bucket);
+                    }
+                }
+
+                storage.writable(functor)
+                    .addFacts(columns, count, indexes, version);
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Sequential reader over memory mappings of a file. Each section is mapped on its own, so that
+     * files larger than the maximum size of a mapping can be read.
+     */
+    private static final class Input
+    {
+        private final FileChannel channel;
+        private final Path file;
+        private final long size;
+        private MappedByteBuffer header = null;
+        private long header_start = 0;
+        private long position = 0;
+
+        Input (FileChannel channel, Path file) throws IOException {
+            this.channel = channel;
+            this.file = file;
+            this.size = channel.size();
+        }
+
+        /** Reads an int. */
+        int get () throws IOException
+        {
+            if (header == null || position + 4 > header_start + header.limit()) {
+                if (position + 4 > size) throw error("truncated snapshot");
+                header_start = position;
+                header = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(CHUNK_SIZE, size - position));
+                header.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            int value = header.getInt((int) (position - header_start));
+            position += 4;
+            return value;
+        }
+
+        /** Maps the next {@code count} ints. */
+        IntBuffer ints (int count) throws IOException {
+            return map(4L * count).asIntBuffer();
+        }
+
+        /** Maps the next {@code count} bytes, and skips the padding after them. */
+        ByteBuffer bytes (int count) throws IOException
+        {
+            ByteBuffer bytes = map(count);
+            position = (position + 3) & ~3L;
+            return bytes;
+        }
+
+        private ByteBuffer map (long length) throws IOException
+        {
+            if (length < 0 || length > MAX_MAPPING) throw error("corrupted snapshot");
+            if (position + length > size) throw error("truncated snapshot");
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            position += length;
+            return buffer.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        IOException error (String message) {
+            return new IOException(file + ": " + message);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
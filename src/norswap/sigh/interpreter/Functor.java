@@ -0,0 +1,65 @@
+package norswap.sigh.interpreter;
+
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Identifies a predicate by its name and arity ({@code father/2} and {@code father/3} are
+ * different predicates).
+ *
+ * <p>Functors are interned: {@link #of} always returns the same instance for the same name and
+ * arity, so that they can be compared by identity and their hash code is computed only once.
+ */
+public final class Functor
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private static final HashMap<Functor, Functor> interned = new HashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    public final String name;
+    public final int arity;
+    private final int hash;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private Functor (String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+        this.hash = Objects.hash(name, arity);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the unique functor with the given name and arity.
+     */
+    public static Functor of (String name, int arity)
+    {
+        Functor functor = new Functor(name, arity);
+        synchronized (interned) {
+            Functor existing = interned.putIfAbsent(functor, functor);
+            return existing != null ? existing : functor;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return name + "/" + arity;
+    }
+
+    @Override public boolean equals (Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Functor)) return false;
+        Functor other = (Functor) o;
+        return arity == other.arity && name.equals(other.name);
+    }
+
+    @Override public int hashCode () {
+        return hash;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,254 @@
+package norswap.sigh.interpreter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses the order in which the goals of a conjunction (the body of a rule, or a query) are
+ * solved, based on the statistics of the {@link RuleStorage} (see {@link
+ * RuleStorage#reorderGoals}).
+ *
+ * <p>The goals are ordered greedily: the next goal is the one that is expected to yield the fewest
+ * solutions given the variables bound by the goals before it. For a goal on facts, this is the
+ * number of facts, divided by the number of distinct atoms at its most selective bound position (as
+ * given by the {@link ArgumentIndex}). If the predicate only has facts, and several positions are
+ * bound, the goal is resolved with a {@link JoinIndex}: the facts are then divided by the
+ * product of the distinct atoms at all the bound positions (assuming they are independent), so
+ * that a goal that joins on several variables is solved as soon as they are bound. A goal on a
+ * predicate without clauses fails at once, and goes first. Each rule of a predicate counts as
+ * {@link #RULE_COST} solutions.
+ *
+ * <p>Only goals whose search is finite are moved: goals on facts, on tabled predicates, or on
+ * predicates whose rules are not (mutually) recursive. Other goals stay where they are, and goals
+ * are only reordered between them, so that a query terminates after reordering if it did before.
+ * Control constructs (cut, negation and once) and constraints also stay where they are, since
+ * their meaning depends on the goals before them, and so do goals on predicates whose rules
+ * reach a control construct or a constraint (see {@link #controlled}). The set of solutions is
+ * the same, but they may come in a different order.
+ *
+ * <p>The orders of the body of a rule are computed once for each combination of head arguments
+ * that are bound when it is called (only the first {@link #MASK_BITS} are considered). An orderer
+ * is only valid as long as the storage isn't modified.
+ */
+final class GoalOrderer
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Estimated number of solutions contributed by a rule. */
+    static final double RULE_COST = 10;
+
+    /** Number of head arguments whose binding is taken into account to order rule bodies. */
+    static final int MASK_BITS = 6;
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final RuleStorage storage;
+
+    /**
+     * Predicates defined by rules whose search may not be finite, or whose meaning depends on the
+     * variables that are bound when they are called.
+     */
+    private final HashSet<Functor> unsafe = new HashSet<>();
+
+    /** Orders of the body of each rule, by mask of bound head arguments. */
+    private final ConcurrentHashMap<Rule, int[][]> orders = new ConcurrentHashMap<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    GoalOrderer (RuleStorage storage)
+    {
+        this.storage = storage;
+        HashMap<Functor, Boolean> finite = new HashMap<>();
+        for (Predicate predicate : storage.predicates())
+            if (!finite(predicate.functor, finite))
+                unsafe.add(predicate.functor);
+        unsafe.addAll(controlled(storage, true));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the predicates that have a rule with a control construct (see {@link
+     * Clause#controlled}), or a constraint if {@code constraints} is set, and the predicates whose
+     * rules call them, transitively.
+     *
+     * <p>A cut or a once in such a predicate may prune solutions, and a negation or a constraint
+     * may fail or throw depending on the variables that are bound when the predicate is called.
+     */
+    static HashSet<Functor> controlled (RuleStorage storage, boolean constraints)
+    {
+        HashMap<Functor, List<Functor>> callers = new HashMap<>();
+        ArrayDeque<Functor> pending = new ArrayDeque<>();
+        for (Predicate predicate : storage.predicates())
+            for (Rule rule : predicate.rules()) {
+                if (rule.clause.controlled || constraints && rule.clause.evaluates)
+                    pending.add(predicate.functor);
+                for (Functor tail : rule.tail_functors)
+                    callers.computeIfAbsent(tail, it -> new ArrayList<>()).add(predicate.functor);
+            }
+        HashSet<Functor> controlled = new HashSet<>();
+        while (!pending.isEmpty()) {
+            Functor functor = pending.poll();
+            if (controlled.add(functor))
+                pending.addAll(callers.getOrDefault(functor, Collections.emptyList()));
+        }
+        return controlled;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the search of the predicate is finite. {@code finite} holds the predicates that
+     * have been visited: true or false once known, null while being visited (a cycle).
+     */
+    private boolean finite (Functor functor, HashMap<Functor, Boolean> finite)
+    {
+        Predicate predicate = storage.getPredicate(functor);
+        if (predicate == null || predicate.tabled || predicate.rules().isEmpty())
+            return true;
+        if (finite.containsKey(functor)) {
+            Boolean known = finite.get(functor);
+            return known != null && known;
+        }
+        finite.put(functor, null);
+        boolean result = true;
+        for (Rule rule : predicate.rules()) {
+            for (Functor tail : rule.tail_functors)
+                if (!finite(tail, finite)) {
+                    result = false;
+                    break;
+                }
+            if (!result) break;
+        }
+        finite.put(functor, result);
+        return result;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the order in which to solve the body of the rule, given the mask of its head
+     * arguments that are bound (bit {@code i} for the i-th argument): {@code order[k]} is the
+     * index of the k-th goal to solve.
+     */
+    int[] order (Rule rule, int mask)
+    {
+        int[][] rule_orders = orders.computeIfAbsent(rule, it -> {
+            Clause clause = it.clause;
+            int bits = Math.min(it.arity, MASK_BITS);
+            int[][] result = new int[1 << bits][];
+            // atoms as their boxes, variables as their name
+            Object[][] args = new Object[clause.args.length][];
+            for (int i = 0; i < args.length; i++) {
+                int[] codes = clause.args[i];
+                args[i] = new Object[codes.length];
+                for (int j = 0; j < codes.length; j++)
+                    args[i][j] = codes[j] >= 0
+                        ? AtomTable.box(codes[j])
+                        : clause.var_names[-codes[j] - 1];
+            }
+            for (int m = 0; m < result.length; m++) {
+                HashSet<Object> bound = new HashSet<>();
+                for (int i = 0; i < bits; i++)
+                    if ((m & (1 << i)) != 0)
+                        bound.add(clause.var_names[clause.head[i]]);
+                result[m] = order(clause.tails, args, clause.controls, bound);
+            }
+            return result;
+        });
+        return rule_orders[mask & (rule_orders.length - 1)];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the order in which to solve the goals, given their functors, arguments and control
+     * constructs (see {@link QueryArg#control}, null if they are all plain goals), and the
+     * variables that are bound beforehand. Arguments that are {@link Integer}s are atoms (see {@link
+     * AtomTable#box}), the other objects are variables.
+     */
+    int[] order (Functor[] functors, Object[][] args, int[] controls, HashSet<Object> bound)
+    {
+        int n = functors.length;
+        int[] order = new int[n];
+        boolean[] done = new boolean[n];
+        int k = 0;
+        while (k < n) {
+            // the goals in [k, end) can be moved, the goal at end (if any) stays in place
+            int end = k;
+            while (end < n && !unsafe.contains(functors[end])
+                    && (controls == null || controls[end] == QueryArg.GOAL))
+                ++end;
+
+            for (int pos = k; pos < end; pos++) {
+                int best = -1;
+                double best_cost = 0;
+                for (int i = k; i < end; i++) {
+                    if (done[i]) continue;
+                    double cost = cost(functors[i], args[i], bound);
+                    if (best < 0 || cost < best_cost) {
+                        best = i;
+                        best_cost = cost;
+                    }
+                }
+                done[best] = true;
+                order[pos] = best;
+                bind(args[best], bound);
+            }
+
+            if (end < n) {
+                done[end] = true;
+                order[end] = end;
+                // a negation binds nothing
+                if (controls == null || controls[end] != QueryArg.NOT)
+                    bind(args[end], bound);
+            }
+            k = end + 1;
+        }
+        return order;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static void bind (Object[] args, HashSet<Object> bound)
+    {
+        for (Object arg : args)
+            if (!is_atom(arg))
+                bound.add(arg);
+    }
+
+    private static boolean is_atom (Object arg) {
+        return arg instanceof Integer;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Estimates the number of solutions of a goal, given the variables that are bound.
+     */
+    private double cost (Functor functor, Object[] args, HashSet<Object> bound)
+    {
+        Predicate predicate = storage.getPredicate(functor);
+        if (predicate == null)
+            return 0;
+        double facts = predicate.factCount();
+        double joined = 1;
+        for (int i = 0; i < args.length; i++)
+            if (is_atom(args[i]) || bound.contains(args[i])) {
+                double distinct = Math.max(1, predicate.distinct(i));
+                facts = Math.min(facts, predicate.factCount() / distinct);
+                joined *= distinct;
+            }
+        if (predicate.factsOnly())
+            facts = Math.min(facts, Math.max(1, predicate.factCount() / joined));
+        List<Rule> rules = predicate.rules();
+        return facts + rules.size() * RULE_COST;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,70 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, without boxing.
+ */
+public final class IntList
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** An empty list, which must not be added to. */
+    static final IntList EMPTY = new IntList(0);
+
+    // ---------------------------------------------------------------------------------------------
+
+    int[] items;
+    int size = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    IntList (int capacity) {
+        items = new int[capacity];
+    }
+
+    IntList (IntList other) {
+        items = Arrays.copyOf(other.items, Math.max(other.size, 4));
+        size = other.size;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    void add (int item)
+    {
+        if (size == items.length)
+            items = Arrays.copyOf(items, Math.max(size * 2, 4));
+        items[size++] = item;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a new list holding the items in {@code [from, to)}.
+     */
+    IntList slice (int from, int to)
+    {
+        IntList slice = new IntList(Math.max(to - from, 4));
+        System.arraycopy(items, from, slice.items, 0, to - from);
+        slice.size = to - from;
+        return slice;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    public int size () {
+        return size;
+    }
+
+    public int get (int i) {
+        return items[i];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return Arrays.toString(Arrays.copyOf(items, size));
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -14,7 +14,11 @@ import norswap.utils.Util;
 import norswap.utils.exceptions.Exceptions;
 import norswap.utils.exceptions.NoStackException;
 import norswap.utils.visitors.ValuedVisitor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 import static norswap.utils.Util.cast;
 import static norswap.utils.Vanilla.*;
@@ -52,7 +56,11 @@ public final class Interpreter
     private RootScope rootScope;
     private ScopeStorage rootStorage;
     private RuleStorage ruleStorage;
-
+    private boolean bottomUp = false;
+    private ForkJoinPool pool = null;
+    private boolean profiling = false;
+    private QueryProfile profile = null;
+    private QueryLimits limits = null;
 
     // ---------------------------------------------------------------------------------------------
 
@@ -88,6 +96,7 @@ public final class Interpreter
         visitor.register(ReturnNode.class,               this::returnStmt);
         visitor.register(QueryNode.class,                this::query);
         visitor.register(RuleDeclarationNode.class,      this::ruleDecl);
+        visitor.register(TableDeclarationNode.class,     this::tableDecl);
 
         visitor.registerFallback(node -> null);
 
@@ -106,10 +115,75 @@ public final class Interpreter
 
     // ---------------------------------------------------------------------------------------------
 
+    /**
+     * Selects the evaluation engine for queries: top-down resolution (the default), or bottom-up
+     * evaluation, which derives all the facts that follow from the rules before the first query
+     * (and again after the clauses change), so that queries become lookups (see {@link
+     * BottomUpEvaluator}). Solutions for rules may then come in a different order.
+     */
+    public void setBottomUp (boolean bottomUp) {
+        this.bottomUp = bottomUp;
+    }
+
+    /**
+     * Makes queries explore the alternative clauses of their first goal in parallel on the given
+     * pool (see {@link QuerySolver#solveParallel}), or sequentially if the pool is null (the
+     * default). Solutions are the same, in the same order.
+     */
+    public void setParallel (ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Enables or disables the cost-based reordering of the goals of rule bodies and queries (see
+     * {@link RuleStorage#reorderGoals}). Solutions are the same, but may come in a different order.
+     */
+    public void setReorderGoals (boolean reorder) {
+        ruleStorage.reorderGoals(reorder);
+    }
+
+    /**
+     * Caches the answers of up to {@code capacity} distinct queries, until the clauses they
+     * depend on change (see {@link RuleStorage#cacheQueries}), or disables caching if {@code
+     * capacity} is 0 (the default).
+     */
+    public void setQueryCache (int capacity) {
+        ruleStorage.cacheQueries(capacity);
+    }
+
+    /**
+     * Enables or disables (the default) the profiling of queries: each query then counts the
+     * work done for each predicate (see {@link QueryProfile}), available from {@link
+     * #lastProfile} once it has run.
+     */
+    public void setProfiling (boolean profiling) {
+        this.profiling = profiling;
+        this.profile = null;
+    }
+
+    /**
+     * Limits the resources of each query (see {@link QueryLimits}), or removes the limits if
+     * {@code limits} is null (the default). A query that exceeds them, or that is cancelled, throws
+     * a {@link QueryLimitException} out of {@link #interpret}.
+     */
+    public void setQueryLimits (QueryLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Returns the profile of the last query, or null if no query was profiled. {@link
+     * QueryProfile#explain} reports where its time went.
+     */
+    public QueryProfile lastProfile () {
+        return profile;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
     private Object run (SighNode node) {
         try {
             return visitor.apply(node);
-        } catch (InterpreterException | Return | PassthroughException e) {
+        } catch (InterpreterException | Return | PassthroughException | QueryLimitException e) {
             throw e;
         } catch (RuntimeException e) {
             throw new InterpreterException("exception while executing " + node, e);
@@ -436,10 +510,36 @@ public final class Interpreter
 
     private Object builtin (String name, Object[] args)
     {
-        assert name.equals("print"); // only one at the moment
-        String out = convertToString(args[0]);
-        System.out.println(out);
-        return out;
+        switch (name) {
+            case "assert":
+                ruleStorage.assertFact((String) args[0], terms(args[1]));
+                return true;
+            case "retract":
+                return ruleStorage.retractFact((String) args[0], terms(args[1]));
+            case "load":
+                return load((String) args[0], (String) args[1]);
+            default:
+                assert name.equals("print");
+                String out = convertToString(args[0]);
+                System.out.println(out);
+                return out;
+        }
+    }
+
+    private long load (String name, String path)
+    {
+        char delimiter = path.endsWith(".tsv") ? '\t' : ',';
+        try {
+            return ruleStorage.loadFacts(name, Paths.get(path), delimiter, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String[] terms (Object array)
+    {
+        Object[] terms = (Object[]) array;
+        return Arrays.copyOf(terms, terms.length, String[].class);
     }
 
     // ---------------------------------------------------------------------------------------------
@@ -535,8 +635,11 @@ public final class Interpreter
     // ---------------------------------------OUR CHANGES----------------------------------------------------
 
     private Void factDecl (FactDeclarationNode node) {
-        Rule rule = new Rule(node.name, node.getTerms(), null, null, true);
-        ruleStorage.addRule(rule);
+        int[] atoms = new int[node.terms.size()];
+        for (int i = 0; i < atoms.length; i++) {
+            atoms[i] = Clause.atom(node.terms.get(i));
+        }
+        ruleStorage.addFact(Functor.of(node.name, atoms.length), atoms);
         return null;
     }
 
@@ -546,36 +649,74 @@ public final class Interpreter
         return null;
     }
 
-    @SuppressWarnings("unchecked")
+    private Void tableDecl (TableDeclarationNode node) {
+        ruleStorage.table(Functor.of(node.name, (int) node.arity));
+        return null;
+    }
+
     private boolean query (QueryNode node) {
-        // Launch the class to solve the query with the current rule database
-        QuerySolver query_solver = new QuerySolver(ruleStorage);
-        Pair sol = query_solver.solve(node);
-        List<List<BoundedPair>> solBoundedList = (List<List<BoundedPair>>) sol.getBounds();
-        // Parcour the solBoundedList to make the array to assign the variable in case of solution found
-        if (solBoundedList != null && solBoundedList.size() != 0) {
-            // Datastructure: Key=variable to bind; value=All possible value
-            HashMap<String, String[]> assi = new HashMap<>();
-            for (int i = 0; i < solBoundedList.size(); i++) {
-                for (int j = 0; j < solBoundedList.get(i).size(); j++) {
-                    if (i==0) {
-                        // Init the datastructure in i=0
-                        String[] stringSol = new String[solBoundedList.size()];
-                        stringSol[0] = solBoundedList.get(i).get(j).getTerm();
-                        assi.put(solBoundedList.get(i).get(j).getLogicVar(), stringSol);
-                    } else {
-                        assi.get(solBoundedList.get(i).get(j).getLogicVar())[i] = solBoundedList.get(i).get(j).getTerm();
-                    }
+        // In bottom-up mode, derive all facts first (if needed): the solver then only looks them up.
+        if (bottomUp)
+            ruleStorage.materialize();
+
+        // Without variables to bind, the first solution is enough to know the query is true.
+        long limit = node.limit != null ? node.limit.value : Long.MAX_VALUE;
+        if (node.getQueryArgs().stream().allMatch(arg -> arg.logic_var.isEmpty()))
+            limit = 1;
+        // The limits may end the query early: its answer is then only valid for the same limit.
+        if (limits != null)
+            limit = Math.min(limit, limits.max_solutions);
+
+        // Reuse the answer to the same query if the clauses it depends on haven't changed.
+        QueryCache cache = ruleStorage.queryCache();
+        QueryCache.Key key = null;
+        QueryCache.Answer answer = null;
+        if (cache != null) {
+            key = new QueryCache.Key(node.queryArgs, limit);
+            answer = cache.get(key, ruleStorage);
+            if (answer != null) {
+                if (profiling) {
+                    profile = new QueryProfile();
+                    profile.cached = true;
                 }
+                assign(node, answer.bindings(key));
+                return answer.success;
             }
+            answer = new QueryCache.Answer(key, ruleStorage);
+        }
+
+        // Launch the class to solve the query with the current rule database
+        QuerySolver query_solver = new QuerySolver(ruleStorage);
+        if (profiling)
+            query_solver.profile(profile = new QueryProfile());
+        query_solver.limit(limits);
 
-            // Make the assignment to each of the variable in the query
-            Scope scope = reactor.get(node, "scope");
-            for (int i = 0; i < assi.keySet().toArray().length; i++) {
-                String key = (String) assi.keySet().toArray()[i];
-                assign(scope, key, assi.get(key), reactor.get(node.queryArgs, "type"));
+        // Datastructure: Key=variable to bind; value=All possible value, in solution order
+        LinkedHashMap<String, List<String>> assi = new LinkedHashMap<>();
+        boolean success = false;
+        try {
+            Iterator<List<BoundedPair>> solutions = pool == null
+                ? query_solver.solutions(node)
+                : query_solver.solveParallel(node, limit, pool).iterator();
+            for (long n = 0; n < limit && solutions.hasNext(); n++) {
+                success = true;
+                for (BoundedPair pair : solutions.next())
+                    assi.computeIfAbsent(pair.getLogicVar(), k -> new ArrayList<>()).add(pair.getTerm());
             }
+        } finally {
+            query_solver.close();
         }
-        return Util.cast(sol.getSucceed(), Boolean.class);
+
+        if (cache != null)
+            cache.put(key, answer.complete(key, success, assi));
+        assign(node, assi);
+        return success;
+    }
+
+    private void assign (QueryNode node, Map<String, List<String>> assi) {
+        // Make the assignment to each of the variable in the query
+        Scope scope = reactor.get(node, "scope");
+        for (Map.Entry<String, List<String>> entry : assi.entrySet())
+            assign(scope, entry.getKey(), entry.getValue().toArray(new String[0]), reactor.get(node.queryArgs, "type"));
     }
 }
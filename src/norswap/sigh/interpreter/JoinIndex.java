@@ -0,0 +1,133 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * Hash index over several argument positions of the facts of a predicate, mapping each
+ * combination of atoms at those positions to the rows that hold it, in declaration order.
+ *
+ * <p>It is used instead of the {@link ArgumentIndex}es when a goal binds several arguments, none
+ * of which narrows the facts much on its own: typically a goal joined with the goals before it on
+ * several shared variables. With an {@link ArgumentIndex}, every fact that matches the most
+ * selective of these variables is unified; with a join index, only the facts that match all of
+ * them are.
+ *
+ * <p>Buckets are found by open addressing, and compared to the key through the first row they
+ * hold, so that a lookup allocates nothing. The index only holds facts, and must be rebuilt when
+ * rows are renumbered (see {@link Predicate#candidates}).
+ */
+final class JoinIndex
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Bit {@code i} is set if the i-th argument position is indexed. */
+    final int mask;
+
+    private final int[] positions;
+
+    // id of the bucket + 1 of each slot, or 0 for an empty slot
+    private int[] slots = new int[16];
+    private IntList[] buckets = new IntList[8];
+    private int count = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    JoinIndex (int mask)
+    {
+        this.mask = mask;
+        this.positions = new int[Integer.bitCount(mask)];
+        for (int i = 0, k = 0; k < positions.length; i++)
+            if ((mask & (1 << i)) != 0)
+                positions[k++] = i;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Registers the fact at {@code row} of the columns of the predicate (see {@link
+     * Predicate#columns}). Rows must be added in declaration order.
+     */
+    void add (int[][] columns, int row)
+    {
+        int hash = 1;
+        for (int position : positions)
+            hash = 31 * hash + columns[position][row];
+        int mask = slots.length - 1;
+        int slot = Relation.mix(hash) & mask;
+        while (slots[slot] != 0) {
+            IntList bucket = buckets[slots[slot] - 1];
+            if (same_key(columns, bucket.items[0], row)) {
+                bucket.add(row);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (count == buckets.length)
+            buckets = Arrays.copyOf(buckets, count * 2);
+        IntList bucket = new IntList(2);
+        bucket.add(row);
+        buckets[count] = bucket;
+        slots[slot] = ++count;
+        if (count * 2 > slots.length)
+            rehash(columns);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void rehash (int[][] columns)
+    {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int b = 0; b < count; b++) {
+            int row = buckets[b].items[0];
+            int hash = 1;
+            for (int position : positions)
+                hash = 31 * hash + columns[position][row];
+            int slot = Relation.mix(hash) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = b + 1;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean same_key (int[][] columns, int row1, int row2)
+    {
+        for (int position : positions)
+            if (columns[position][row1] != columns[position][row2])
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the rows of the facts that hold the atoms of {@code args} at the indexed positions,
+     * in declaration order. {@code args} holds the (dereferenced) arguments of a goal, which must
+     * be atoms (see {@link AtomTable#box}) at the indexed positions. The returned list must not be
+     * modified.
+     */
+    IntList lookup (int[][] columns, Object[] args)
+    {
+        int hash = 1;
+        for (int position : positions)
+            hash = 31 * hash + (Integer) args[position];
+        int mask = slots.length - 1;
+        int slot = Relation.mix(hash) & mask;
+        outer:
+        while (slots[slot] != 0) {
+            IntList bucket = buckets[slots[slot] - 1];
+            int row = bucket.items[0];
+            slot = (slot + 1) & mask;
+            for (int position : positions)
+                if (columns[position][row] != (Integer) args[position])
+                    continue outer;
+            return bucket;
+        }
+        return IntList.EMPTY;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,529 @@
+package norswap.sigh.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The clauses stored for a single {@link Functor}, in declaration order, along with one
+ * {@link ArgumentIndex} per argument position, and a {@link JoinIndex} for each combination of
+ * argument positions that goals bind together (see {@link #candidates}).
+ *
+ * <p>Ground facts are not stored as {@link Rule} objects but in a columnar store: one growable
+ * {@code int[]} column per argument position, holding the {@link AtomTable} ids of the terms of
+ * each fact. Fact {@code i} is row {@code i} of the columns.
+ *
+ * <p>Clauses are designated by a reference (an int): a fact by its row ({@code >= 0}), a rule by
+ * the bitwise complement of its position in {@link #rules} ({@code < 0}).
+ *
+ * <p>The facts derived from the rules by {@link BottomUpEvaluator} can be materialized: they are
+ * appended to the columns after the declared facts, and until the predicate is dematerialized, its
+ * clauses are all its facts (declared and derived) but none of its rules.
+ *
+ * <p>Facts can be retracted. Rows never move while queries may be running: each row is stamped
+ * with the version of the storage at which it was added ({@code born}) and removed ({@code died}),
+ * and a query only sees the rows that were alive at the version it started at (see {@link
+ * #visible}). Rules are stamped with the version at which they were added, and cannot be removed.
+ * Retracted rows are left in the clause lists and indexes, until they make up half of the rows and
+ * the storage {@link #compact compacts} the predicate.
+ *
+ * <p>A predicate that belongs to a read-only storage ({@link RuleStorage#publish}) is never
+ * modified: the storage it was published from modifies a {@link #copy} of it instead.
+ */
+public final class Predicate
+{
+    // ---------------------------------------------------------------------------------------------
+
+    public final Functor functor;
+    private IntList clauses = new IntList(4);
+    private ArgumentIndex[] indexes;
+
+    /**
+     * Size of the bucket of the most selective bound argument above which a goal that binds
+     * several arguments is resolved with a {@link JoinIndex}.
+     */
+    static final int JOIN_THRESHOLD = 16;
+
+    private static final JoinIndex[] NO_JOINS = new JoinIndex[0];
+
+    // Built lazily, possibly by several threads querying a published storage, and dropped when the
+    // clauses are renumbered or are no longer all facts.
+    private volatile JoinIndex[] joins = NO_JOINS;
+
+    private final ArrayList<Rule> rules = new ArrayList<>();
+    // version at which each rule was added (see RuleStorage#version)
+    private IntList rules_born = new IntList(4);
+    private int[][] columns;
+    private int fact_count = 0;
+
+    /** Value of {@code died} for the rows that have not been removed. */
+    static final int ALIVE = Integer.MAX_VALUE;
+
+    // version at which each row was added and removed (see RuleStorage#version)
+    private int[] born = new int[4];
+    private int[] died = new int[4];
+    // number of rows that have been removed
+    private int dead = 0;
+
+    /** Whether calls to the predicate are resolved against answer tables (see {@link Tabling}). */
+    boolean tabled = false;
+
+    /** Incremented whenever the clauses of the predicate change (see {@link QueryCache}). */
+    int revision = 0;
+
+    /** Whether the predicate belongs to a read-only storage, and must be copied to be modified. */
+    boolean published = false;
+
+    // Clauses and indexes of the materialized facts, or null if the predicate isn't materialized.
+    private IntList materialized_clauses = null;
+    private ArgumentIndex[] materialized_indexes = null;
+    private int declared_fact_count;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Predicate (Functor functor) {
+        this.functor = functor;
+        this.indexes = new_indexes();
+        this.columns = new int[functor.arity][4];
+    }
+
+    /**
+     * Returns a copy of the predicate, which can be modified without affecting this one.
+     */
+    Predicate copy ()
+    {
+        Predicate copy = new Predicate(functor);
+        copy.clauses = new IntList(clauses);
+        copy.indexes = copy(indexes);
+        copy.rules.addAll(rules);
+        copy.rules_born = new IntList(rules_born);
+        for (int i = 0; i < columns.length; i++)
+            copy.columns[i] = columns[i].clone();
+        copy.fact_count = fact_count;
+        copy.born = born.clone();
+        copy.died = died.clone();
+        copy.dead = dead;
+        copy.tabled = tabled;
+        copy.revision = revision;
+        if (materialized_clauses != null) {
+            copy.materialized_clauses = new IntList(materialized_clauses);
+            copy.materialized_indexes = copy(materialized_indexes);
+            copy.declared_fact_count = declared_fact_count;
+        }
+        return copy;
+    }
+
+    private static ArgumentIndex[] copy (ArgumentIndex[] indexes)
+    {
+        ArgumentIndex[] copy = new ArgumentIndex[indexes.length];
+        for (int i = 0; i < indexes.length; i++)
+            copy[i] = indexes[i].copy();
+        return copy;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private ArgumentIndex[] new_indexes ()
+    {
+        ArgumentIndex[] indexes = new ArgumentIndex[functor.arity];
+        for (int i = 0; i < indexes.length; i++)
+            indexes[i] = new ArgumentIndex();
+        return indexes;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a ground fact, given as the ids of its terms, at the given version.
+     */
+    void addFact (int[] atoms, int version)
+    {
+        ++revision;
+        int row = addRow(atoms, 0, version);
+        clauses.add(row);
+        for (int i = 0; i < indexes.length; i++)
+            indexes[i].add(row, AtomTable.box(atoms[i]));
+        // while materialized, the join indexes hold the materialized facts, which do not change
+        if (materialized_clauses == null)
+            for (JoinIndex join : joins)
+                join.add(columns, row);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds {@code count} ground facts at the given version: fact {@code k} has id {@code
+     * columns[i][k]} at position {@code i}. If the predicate has no clauses yet, the columns
+     * and {@code indexes}, which must index the facts by row, are used as the store and indexes of
+     * the predicate. Otherwise the facts are added one by one.
+     */
+    void addFacts (int[][] columns, int count, ArgumentIndex[] indexes, int version)
+    {
+        ++revision;
+        if (clauses.size > 0 || materialized_clauses != null) {
+            int[] atoms = new int[columns.length];
+            for (int k = 0; k < count; k++) {
+                for (int i = 0; i < atoms.length; i++)
+                    atoms[i] = columns[i][k];
+                addFact(atoms, version);
+            }
+            return;
+        }
+        int capacity = Math.max(count, 4);
+        this.columns = columns;
+        this.indexes = indexes;
+        joins = NO_JOINS;
+        fact_count = count;
+        dead = 0;
+        born = new int[capacity];
+        died = new int[capacity];
+        Arrays.fill(born, version);
+        Arrays.fill(died, ALIVE);
+        clauses = new IntList(capacity);
+        for (int row = 0; row < count; row++)
+            clauses.items[row] = row;
+        clauses.size = count;
+    }
+
+    private int addRow (int[] atoms, int offset, int version)
+    {
+        int row = fact_count++;
+        if (row == born.length) {
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = Arrays.copyOf(columns[i], row * 2);
+            born = Arrays.copyOf(born, row * 2);
+            died = Arrays.copyOf(died, row * 2);
+        }
+        for (int i = 0; i < columns.length; i++)
+            columns[i][row] = atoms[offset + i];
+        born[row] = version;
+        died[row] = ALIVE;
+        return row;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Removes the first declared fact (that has not been removed yet) equal to the given ids, at
+     * the given version. Returns false if there is no such fact.
+     *
+     * <p>The fact is looked up in the bucket of the most selective argument index.
+     */
+    boolean retract (int[] atoms, int version)
+    {
+        IntList refs = clauses;
+        for (int i = 0; i < indexes.length; i++) {
+            IntList candidates = indexes[i].lookup(AtomTable.box(atoms[i]));
+            if (candidates.size < refs.size)
+                refs = candidates;
+        }
+        for (int k = 0; k < refs.size; k++) {
+            int row = refs.items[k];
+            if (row < 0 || died[row] != ALIVE || !matches(row, atoms))
+                continue;
+            died[row] = version;
+            ++dead;
+            ++revision;
+            return true;
+        }
+        return false;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean matches (int row, int[] atoms)
+    {
+        for (int i = 0; i < columns.length; i++)
+            if (columns[i][row] != atoms[i])
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Whether the clause with the given reference exists at the given version.
+     */
+    boolean visible (int ref, int version) {
+        if (ref < 0)
+            return rules_born.items[~ref] <= version;
+        return born[ref] <= version && version < died[ref];
+    }
+
+    /**
+     * Whether the fact at {@code row} has not been removed.
+     */
+    boolean alive (int row) {
+        return died[row] == ALIVE;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Drops the removed rows from the store, the clause list and the indexes, if they make up at
+     * least half of the rows. This renumbers the rows, and must only be called while no query is
+     * running and the predicate isn't materialized.
+     */
+    void compact ()
+    {
+        if (dead < 16 || dead * 2 < fact_count)
+            return;
+
+        int[][] old_columns = columns;
+        int[] old_died = died;
+        IntList old_clauses = clauses;
+        int capacity = Math.max(fact_count - dead, 4);
+
+        columns = new int[functor.arity][capacity];
+        born = new int[capacity];
+        died = new int[capacity];
+        fact_count = 0;
+        dead = 0;
+        clauses = new IntList(Math.max(old_clauses.size, 4));
+        indexes = new_indexes();
+        joins = NO_JOINS;
+
+        int[] atoms = new int[functor.arity];
+        for (int k = 0; k < old_clauses.size; k++) {
+            int ref = old_clauses.items[k];
+            if (ref < 0) {
+                clauses.add(ref);
+                for (ArgumentIndex index : indexes)
+                    index.add(ref, null);
+            } else if (old_died[ref] == ALIVE) {
+                for (int i = 0; i < atoms.length; i++)
+                    atoms[i] = old_columns[i][ref];
+                addFact(atoms, 0);
+            }
+        }
+    }
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds a rule, whose head arguments are all logic variables, at the given version.
+     */
+    void addRule (Rule rule, int version)
+    {
+        ++revision;
+        int ref = ~rules.size();
+        rules.add(rule);
+        rules_born.add(version);
+        clauses.add(ref);
+        joins = NO_JOINS;
+        for (ArgumentIndex index : indexes)
+            index.add(ref, null);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Materializes the predicate: appends the tuples of {@code relation} from the {@code from}-th
+     * onwards as facts, and from then on only resolves the predicate against its facts.
+     */
+    void materialize (Relation relation, int from, int version)
+    {
+        ++revision;
+        declared_fact_count = fact_count;
+        for (int t = from; t < relation.count; t++)
+            addRow(relation.tuples, t * relation.arity, version);
+
+        materialized_clauses = new IntList(Math.max(fact_count, 4));
+        materialized_indexes = new_indexes();
+        joins = NO_JOINS;
+        for (int row = 0; row < fact_count; row++) {
+            if (died[row] != ALIVE)
+                continue;
+            materialized_clauses.add(row);
+            for (int i = 0; i < materialized_indexes.length; i++)
+                materialized_indexes[i].add(row, AtomTable.box(columns[i][row]));
+        }
+    }
+
+    /**
+     * Whether the derived facts are materialized (see {@link #materialize}).
+     */
+    boolean materialized () {
+        return materialized_clauses != null;
+    }
+
+    /**
+     * Removes the facts added by {@link #materialize}, if any, at the given version, and resolves
+     * the predicate against its declared clauses again.
+     */
+    void dematerialize (int version)
+    {
+        if (materialized_clauses == null)
+            return;
+        ++revision;
+        for (int row = declared_fact_count; row < fact_count; row++) {
+            died[row] = version;
+            ++dead;
+        }
+        materialized_clauses = null;
+        materialized_indexes = null;
+        joins = NO_JOINS;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the references of all the clauses of the predicate. The returned list must not be
+     * modified.
+     */
+    public IntList clauses () {
+        return materialized_clauses != null ? materialized_clauses : clauses;
+    }
+
+    /**
+     * Returns the rules of the predicate, in declaration order. The returned list must not be
+     * modified.
+     */
+    public List<Rule> rules () {
+        return rules;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the columns of the fact store: {@code columns()[i][row]} is the id of the i-th term
+     * of the fact at {@code row}. The returned arrays must not be modified.
+     */
+    int[][] columns () {
+        return columns;
+    }
+
+    /**
+     * Returns the rule with the given (negative) reference.
+     */
+    public Rule rule (int ref) {
+        return rules.get(~ref);
+    }
+
+    /**
+     * Returns the number of facts of the predicate (excluding the removed ones).
+     */
+    public int factCount () {
+        return fact_count - dead;
+    }
+
+    /**
+     * Returns the number of rows of the fact store, including those of removed facts.
+     */
+    int rowCount () {
+        return fact_count;
+    }
+
+    /**
+     * Returns the number of rows of the fact store that hold declared facts, i.e. that were not
+     * derived by {@link #materialize}. These are the first rows.
+     */
+    int declaredRowCount () {
+        return materialized_clauses != null ? declared_fact_count : fact_count;
+    }
+
+    /**
+     * Returns the number of distinct atoms that appear at the given argument position in the
+     * clauses of the predicate.
+     */
+    int distinct (int position) {
+        ArgumentIndex[] indexes =
+            materialized_indexes != null ? materialized_indexes : this.indexes;
+        return indexes[position].distinct();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the references of the clauses that can match a goal with the given (dereferenced)
+     * arguments, in declaration order. Bound arguments are atoms (see {@link AtomTable#box}), the
+     * others are ignored. The most selective bound position is used to narrow the lookup.
+     *
+     * <p>If the clauses are all facts and the goal binds several arguments, but the most selective
+     * of them leaves more than {@link #JOIN_THRESHOLD} candidates, the {@link JoinIndex} over all
+     * the bound positions is used instead (and built the first time). A goal joined with the goals
+     * before it on several variables thus costs a hash lookup, rather than a scan of the facts
+     * that share one of the variables. Only the first 32 positions are considered.
+     *
+     * <p>The returned list must not be modified.
+     */
+    public IntList candidates (Object[] args)
+    {
+        IntList refs = clauses();
+        ArgumentIndex[] indexes =
+            materialized_indexes != null ? materialized_indexes : this.indexes;
+        int bound = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (!(args[i] instanceof Integer))
+                continue;
+            if (i < Integer.SIZE)
+                bound |= 1 << i;
+            IntList candidates = indexes[i].lookup((Integer) args[i]);
+            if (candidates.size < refs.size)
+                refs = candidates;
+        }
+        if (refs.size > JOIN_THRESHOLD && Integer.bitCount(bound) > 1 && factsOnly())
+            return join(bound).lookup(columns, args);
+        return refs;
+    }
+
+    /**
+     * Whether the clauses of the predicate are all facts.
+     */
+    boolean factsOnly () {
+        return rules.isEmpty() || materialized_clauses != null;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the join index over the positions in {@code mask}, building it if needed.
+     */
+    private JoinIndex join (int mask)
+    {
+        for (JoinIndex join : joins)
+            if (join.mask == mask)
+                return join;
+        return new_join(mask);
+    }
+
+    private synchronized JoinIndex new_join (int mask)
+    {
+        JoinIndex[] joins = this.joins;
+        for (JoinIndex join : joins)
+            if (join.mask == mask)
+                return join;
+        JoinIndex join = new JoinIndex(mask);
+        IntList refs = clauses();
+        for (int k = 0; k < refs.size; k++)
+            join.add(columns, refs.items[k]);
+        JoinIndex[] grown = Arrays.copyOf(joins, joins.length + 1);
+        grown[joins.length] = join;
+        this.joins = grown;
+        return join;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString ()
+    {
+        StringBuilder b = new StringBuilder("[");
+        for (int i = 0; i < clauses.size; i++) {
+            int ref = clauses.items[i];
+            if (ref >= 0 && died[ref] != ALIVE) continue;
+            if (b.length() > 1) b.append(", ");
+            if (ref < 0) {
+                b.append(rule(ref));
+                continue;
+            }
+            b.append(functor.name).append('(');
+            for (int j = 0; j < columns.length; j++) {
+                if (j > 0) b.append(", ");
+                b.append(AtomTable.name(columns[j][ref]));
+            }
+            b.append(')');
+        }
+        return b.append(']').toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -1,58 +1,95 @@
 package norswap.sigh.interpreter;
 
-
-import norswap.utils.Util;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-
+/**
+ * A goal being solved.
+ * @functor is the predicate name and arity, @predicate the matching clauses in the storage
+ * (resolved once when the goal is built, null if there are none)
+ * @tabled is true if the goal must be resolved against an answer table (see {@link Tabling})
+ * @args are the arguments of the goal: an atom (see {@link AtomTable#box}), or a {@link Var}.
+ * @control is {@link #GOAL} for a plain goal, or the control construct the goal stands for:
+ * {@link #CUT}, which removes the choice points above @barrier, or {@link #NOT} / {@link #ONCE}
+ * applied to the plain goal @inner (whose functor and arguments the goal shares), or {@link #OR},
+ * a disjunction whose branches are the continuations @alternatives (see {@link Clause.Body}), or
+ * {@link #EVAL}, a constraint evaluated over the arguments (see {@link Arithmetic}).
+ */
 public class QueryArg {
-    public final String name;
-    public final Integer arity;
-    public final HashMap<Integer, String> terms;
 
-    public final HashMap<Integer, String> logic_var;
-    public final List<Object> arg_list;
+    static final int GOAL = 0, CUT = 1, NOT = 2, ONCE = 3, OR = 4, EVAL = 5;
 
-    @SuppressWarnings("unchecked")
-    public QueryArg (String name, Integer arity, HashMap<Integer, String> terms, HashMap<Integer, String> logic_var, List<Object> arg_list) {
-
-        this.name = Util.cast(name, String.class);
-        this.arity = arity;
-        this.terms = terms;
-        this.logic_var = logic_var;
-        this.arg_list = arg_list;
+    public final Functor functor;
+    public final Predicate predicate;
+    final Object[] args;
+    final boolean tabled;
+    final int control;
+    final QueryArg inner;
+    final int barrier;
+    final Continuation[] alternatives;
+    final Arithmetic constraint;
 
+    QueryArg (Functor functor, Predicate predicate, Object[] args, boolean tabled) {
+        this.functor = functor;
+        this.predicate = predicate;
+        this.args = args;
+        this.tabled = tabled;
+        this.control = GOAL;
+        this.inner = null;
+        this.barrier = 0;
+        this.alternatives = null;
+        this.constraint = null;
     }
 
-    public HashMap<Integer, String> getTerms () {return terms;}
+    QueryArg (int control, QueryArg inner, int barrier) {
+        this.functor = inner == null ? Clause.CUT : inner.functor;
+        this.predicate = inner == null ? null : inner.predicate;
+        this.args = inner == null ? new Object[0] : inner.args;
+        this.tabled = false;
+        this.control = control;
+        this.inner = inner;
+        this.barrier = barrier;
+        this.alternatives = null;
+        this.constraint = null;
+    }
 
-    public List<String> getTermsAsList () {
-        ArrayList<String> terms_list = new ArrayList<>();
-        for (String term : terms.values()) {
-            terms_list.add(term);
-        }
-        return terms_list;
+    QueryArg (Continuation[] alternatives) {
+        this.functor = Clause.OR;
+        this.predicate = null;
+        this.args = new Object[0];
+        this.tabled = false;
+        this.control = OR;
+        this.inner = null;
+        this.barrier = 0;
+        this.alternatives = alternatives;
+        this.constraint = null;
     }
 
-    public Integer getArity() {return arity;}
-    public HashMap<Integer, String> getLogicVar () {return logic_var;}
+    QueryArg (Functor functor, Object[] args, Arithmetic constraint) {
+        this.functor = functor;
+        this.predicate = null;
+        this.args = args;
+        this.tabled = false;
+        this.control = EVAL;
+        this.inner = null;
+        this.barrier = 0;
+        this.alternatives = null;
+        this.constraint = constraint;
+    }
 
     public String name () {
-        return name;
+        return functor.name;
     }
 
     public String toString() {
-        String str = name + "(";
-        for(int i = 0; i < arity; i++) {
-            if (terms.containsKey(i)) {
-                str += terms.get(i);
-            }
-            else {
-                str += logic_var.get(i);
-            }
-            if (i != arity-1){
+        if (control == CUT) {
+            return "!";
+        } else if (control == OR) {
+            return "OR(" + alternatives.length + ")";
+        } else if (control != GOAL && control != EVAL) {
+            return (control == NOT ? "NOT " : "once ") + inner;
+        }
+        String str = functor.name + "(";
+        for(int i = 0; i < args.length; i++) {
+            str += args[i] instanceof Integer ? AtomTable.name((Integer) args[i]) : args[i];
+            if (i != args.length-1){
                 str += " ";
             }
         }
@@ -0,0 +1,205 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.QueryArgNode;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded cache of the answers of queries, evicting the least recently used entry when full (see
+ * {@link RuleStorage#cacheQueries}).
+ *
+ * <p>Queries are keyed by their goals, normalized so that they do not depend on the names of
+ * their variables: {@code father(X, "Harry")} and {@code father(Y, "Harry")} share an entry. An
+ * entry records the {@link Predicate#revision revision} of every predicate that the query can
+ * reach through rules, and is discarded when one of them has changed since.
+ */
+final class QueryCache
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final LinkedHashMap<Key, Answer> entries;
+
+    // ---------------------------------------------------------------------------------------------
+
+    QueryCache (int capacity) {
+        this.entries = new LinkedHashMap<Key, Answer>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<Key, Answer> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The normalized goals of a query, along with the maximum number of solutions wanted. Goal
+     * arguments are encoded as in {@link Clause}: the {@link AtomTable} id of an atom, or {@code
+     * -(slot+1)} for a variable, numbered in order of first occurrence.
+     */
+    static final class Key
+    {
+        final Functor[] functors;
+        final int[][] args;
+        final long limit;
+
+        /** Name of each variable in the query, by slot (not part of the key). */
+        final String[] var_names;
+
+        private final int hash;
+
+        Key (List<QueryArgNode> goals, long limit)
+        {
+            HashMap<String, Integer> slots = new HashMap<>();
+            functors = new Functor[goals.size()];
+            args = new int[goals.size()][];
+            for (int i = 0; i < functors.length; i++) {
+                QueryArgNode goal = goals.get(i);
+                functors[i] = Functor.of(goal.name, goal.arity);
+                args[i] = new int[goal.arity];
+                for (int j = 0; j < goal.arity; j++) {
+                    Object arg = goal.arg_list.get(j);
+                    args[i][j] = arg instanceof String
+                        ? -slots.computeIfAbsent((String) arg, k -> slots.size()) - 1
+                        : Clause.atom(arg);
+                }
+            }
+            this.limit = limit;
+            var_names = new String[slots.size()];
+            slots.forEach((name, slot) -> var_names[slot] = name);
+            hash = 31 * (31 * Arrays.hashCode(functors) + Arrays.deepHashCode(args))
+                + Long.hashCode(limit);
+        }
+
+        @Override public boolean equals (Object o)
+        {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return hash == other.hash && limit == other.limit
+                && Arrays.equals(functors, other.functors)
+                && Arrays.deepEquals(args, other.args);
+        }
+
+        @Override public int hashCode () {
+            return hash;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The answer to a query: whether it has a solution, and the values of its variables in
+     * solution order.
+     */
+    static final class Answer
+    {
+        // the predicates that the query depends on, and their revision when it was solved
+        private final Functor[] dependencies;
+        private final int[] revisions;
+
+        boolean success;
+
+        // slots of the variables, in the order in which they were first bound, and their values
+        private int[] slots;
+        private String[][] values;
+
+        /**
+         * Creates an answer for the query, recording the revisions of the predicates it depends
+         * on. Must be called before solving the query, and be {@link #complete completed} after.
+         */
+        Answer (Key key, RuleStorage storage)
+        {
+            // the predicates reachable from the goals through the rules
+            HashSet<Functor> reached = new HashSet<>(Arrays.asList(key.functors));
+            ArrayDeque<Functor> pending = new ArrayDeque<>(reached);
+            while (!pending.isEmpty()) {
+                Predicate predicate = storage.getPredicate(pending.pop());
+                if (predicate == null) continue;
+                for (Rule rule : predicate.rules())
+                    for (Functor tail : rule.tail_functors)
+                        if (reached.add(tail))
+                            pending.push(tail);
+            }
+            dependencies = reached.toArray(new Functor[0]);
+            revisions = new int[dependencies.length];
+            for (int i = 0; i < revisions.length; i++)
+                revisions[i] = revision(storage, dependencies[i]);
+        }
+
+        /**
+         * Sets the result of the query: whether it succeeded, and the values of its variables,
+         * by name, in the order in which they were first bound. Returns this answer.
+         */
+        Answer complete (Key key, boolean success, Map<String, List<String>> bindings)
+        {
+            this.success = success;
+            HashMap<String, Integer> slot_of = new HashMap<>();
+            for (int slot = 0; slot < key.var_names.length; slot++)
+                slot_of.put(key.var_names[slot], slot);
+            slots = new int[bindings.size()];
+            values = new String[bindings.size()][];
+            int i = 0;
+            for (Map.Entry<String, List<String>> entry : bindings.entrySet()) {
+                slots[i] = slot_of.get(entry.getKey());
+                values[i++] = entry.getValue().toArray(new String[0]);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the values of the variables of the query, by name, in the order in which they
+         * were first bound.
+         */
+        LinkedHashMap<String, List<String>> bindings (Key key)
+        {
+            LinkedHashMap<String, List<String>> bindings = new LinkedHashMap<>();
+            for (int i = 0; i < slots.length; i++)
+                bindings.put(key.var_names[slots[i]], Arrays.asList(values[i]));
+            return bindings;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the answer to the query, or null if it isn't cached or if the clauses it depends
+     * on have changed since it was cached.
+     */
+    synchronized Answer get (Key key, RuleStorage storage)
+    {
+        Answer answer = entries.get(key);
+        if (answer == null)
+            return null;
+        for (int i = 0; i < answer.dependencies.length; i++) {
+            if (revision(storage, answer.dependencies[i]) != answer.revisions[i]) {
+                entries.remove(key);
+                return null;
+            }
+        }
+        return answer;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private static int revision (RuleStorage storage, Functor functor) {
+        Predicate predicate = storage.getPredicate(functor);
+        return predicate == null ? -1 : predicate.revision;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Caches the (completed) answer to the query.
+     */
+    synchronized void put (Key key, Answer answer) {
+        entries.put(key, answer);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
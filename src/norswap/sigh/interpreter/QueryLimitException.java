@@ -0,0 +1,17 @@
+package norswap.sigh.interpreter;
+
+/**
+ * Thrown by a query that exceeds one of its {@link QueryLimits}, or that is cancelled.
+ */
+public final class QueryLimitException extends RuntimeException {
+
+    /** The limit that was exceeded. */
+    public enum Reason { STEPS, TIME, BINDINGS, CANCELLED }
+
+    public final Reason reason;
+
+    public QueryLimitException (Reason reason, String message) {
+        super(message);
+        this.reason = reason;
+    }
+}
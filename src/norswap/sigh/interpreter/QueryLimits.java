@@ -0,0 +1,123 @@
+package norswap.sigh.interpreter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The resources a query may use (see {@link QuerySolver#limit}), so that a runaway query cannot
+ * keep its thread busy forever. All limits are off by default.
+ *
+ * <ul>
+ *     <li>{@link #steps}: the number of inference steps (goals called, retried or evaluated),
+ *     counted over the whole query, including the evaluation of its tables and negations.</li>
+ *     <li>{@link #time}: the wall-clock time since the query started.</li>
+ *     <li>{@link #bindings}: the number of variable bindings and choice points that a solver holds
+ *     at once, which bounds the memory of its trail and choice point stack. The solvers of tables
+ *     and negations are bounded separately.</li>
+ *     <li>{@link #solutions}: the number of solutions, after which the query ends normally.</li>
+ *     <li>{@link #token}: a token that other threads can cancel.</li>
+ * </ul>
+ *
+ * <p>Exceeding a limit other than the number of solutions, or cancelling the query, aborts it
+ * with a {@link QueryLimitException}. Time and cancellation are checked every {@value
+ * #CHECK_INTERVAL} steps.
+ */
+public final class QueryLimits
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /** Number of steps between two checks of the time and of the cancellation token. */
+    static final int CHECK_INTERVAL = 1024;
+
+    // ---------------------------------------------------------------------------------------------
+
+    long max_steps = Long.MAX_VALUE;
+    long max_nanos = Long.MAX_VALUE;
+    long max_bindings = Long.MAX_VALUE;
+    long max_solutions = Long.MAX_VALUE;
+    CancellationToken token = null;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /** Limits the number of inference steps of the query. */
+    public QueryLimits steps (long max) {
+        max_steps = max;
+        return this;
+    }
+
+    /** Limits the wall-clock time of the query. */
+    public QueryLimits time (long max, TimeUnit unit) {
+        max_nanos = unit.toNanos(max);
+        return this;
+    }
+
+    /** Limits the number of bindings and choice points held at once by a solver of the query. */
+    public QueryLimits bindings (long max) {
+        max_bindings = max;
+        return this;
+    }
+
+    /** Limits the number of solutions of the query. */
+    public QueryLimits solutions (long max) {
+        max_solutions = max;
+        return this;
+    }
+
+    /** Makes the query abort once the token is cancelled. */
+    public QueryLimits token (CancellationToken token) {
+        this.token = token;
+        return this;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The state of the limits while a query runs, shared by the solvers of the query.
+     */
+    static final class Budget
+    {
+        final QueryLimits limits;
+        final long start;
+        long steps;
+
+        Budget (QueryLimits limits) {
+            this.limits = limits;
+            this.start = System.nanoTime();
+        }
+
+        /** A budget with the same limits and start time, but its own count of steps. */
+        Budget (Budget other) {
+            this.limits = other.limits;
+            this.start = other.start;
+        }
+
+        /**
+         * Counts a step, and throws if the query is out of steps or time, or has been cancelled.
+         */
+        void step ()
+        {
+            if (++steps > limits.max_steps)
+                throw new QueryLimitException(QueryLimitException.Reason.STEPS,
+                    "the query exceeded " + limits.max_steps + " steps");
+            if (steps % CHECK_INTERVAL != 0)
+                return;
+            if (limits.token != null && limits.token.cancelled())
+                throw new QueryLimitException(QueryLimitException.Reason.CANCELLED,
+                    "the query was cancelled");
+            if (System.nanoTime() - start > limits.max_nanos)
+                throw new QueryLimitException(QueryLimitException.Reason.TIME, "the query exceeded "
+                    + TimeUnit.NANOSECONDS.toMillis(limits.max_nanos) + " ms");
+        }
+
+        /**
+         * Throws if a solver holds more than the maximum number of bindings and choice points.
+         */
+        void hold (long held)
+        {
+            if (held > limits.max_bindings)
+                throw new QueryLimitException(QueryLimitException.Reason.BINDINGS,
+                    "the query exceeded " + limits.max_bindings + " bindings and choice points");
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
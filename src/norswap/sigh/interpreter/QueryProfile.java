@@ -0,0 +1,153 @@
+package norswap.sigh.interpreter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Counts the work done by a {@link QuerySolver} to solve a query, per predicate (see {@link
+ * QuerySolver#profile}), so that the predicates a slow query spends its time in can be found.
+ * {@link #explain} formats the counters as a report, most expensive predicates first.
+ *
+ * <p>For each predicate, the profile counts the goals called, the clauses, facts or table answers
+ * tried against them, the tries that unified, the times a goal was resumed from a choice point to
+ * try its remaining candidates (retries) and the times a goal ran out of candidates (failures).
+ * The time of a predicate is the time spent selecting the candidates of its goals and unifying
+ * them: for a tabled predicate, this includes the evaluation of its tables, whose clauses are
+ * also counted as calls. Constraints are reported as the predicate of their operator, with their
+ * calls and failures.
+ *
+ * <p>Solvers that are not profiled do not count anything.
+ */
+public final class QueryProfile
+{
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * The counters of a predicate.
+     */
+    public static final class Counters
+    {
+        public final Functor functor;
+        long calls, tries, unifications, retries, failures, nanos;
+
+        Counters (Functor functor) {
+            this.functor = functor;
+        }
+
+        public long calls ()        { return calls; }
+        public long tries ()        { return tries; }
+        public long unifications () { return unifications; }
+        public long retries ()      { return retries; }
+        public long failures ()     { return failures; }
+        public long nanos ()        { return nanos; }
+
+        void add (Counters other) {
+            calls += other.calls;
+            tries += other.tries;
+            unifications += other.unifications;
+            retries += other.retries;
+            failures += other.failures;
+            nanos += other.nanos;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final LinkedHashMap<Functor, Counters> counters = new LinkedHashMap<>();
+
+    long solutions, nanos;
+    boolean cached;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the counters of the predicate, creating them if needed.
+     */
+    Counters counters (Functor functor) {
+        return counters.computeIfAbsent(functor, Counters::new);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the counts of another profile (e.g. of a branch of a parallel search) to this one.
+     */
+    void add (QueryProfile other)
+    {
+        other.counters.forEach((functor, counts) -> counters(functor).add(counts));
+        solutions += other.solutions;
+        nanos += other.nanos;
+        cached |= other.cached;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the counters of the predicate, or null if no goal of the predicate was called.
+     */
+    public Counters get (Functor functor) {
+        return counters.get(functor);
+    }
+
+    /**
+     * Returns the counters of every predicate that was called, in order of first call.
+     */
+    public Collection<Counters> predicates () {
+        return Collections.unmodifiableCollection(counters.values());
+    }
+
+    /** Number of solutions found. */
+    public long solutions () {
+        return solutions;
+    }
+
+    /** Time spent searching for solutions, in nanoseconds. */
+    public long nanos () {
+        return nanos;
+    }
+
+    /** Whether the answer was taken from the query cache, in which case nothing was solved. */
+    public boolean cached () {
+        return cached;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns a report of the profile: a summary line, followed by the counters of each predicate,
+     * those that took the most time first.
+     */
+    public String explain ()
+    {
+        if (cached)
+            return "answered from the query cache\n";
+
+        StringBuilder report = new StringBuilder(String.format(
+            "%d solution%s in %.3f ms%n", solutions, solutions == 1 ? "" : "s", nanos / 1e6));
+        List<Counters> predicates = new ArrayList<>(counters.values());
+        predicates.sort((a, b) -> Long.compare(b.nanos, a.nanos));
+        int width = "predicate".length();
+        for (Counters counts : predicates)
+            width = Math.max(width, counts.functor.toString().length());
+
+        String row = "%-" + width + "s %10s %10s %12s %10s %10s %10s%n";
+        report.append(String.format(row,
+            "predicate", "calls", "tries", "unifications", "retries", "failures", "time (ms)"));
+        for (Counters counts : predicates)
+            report.append(String.format(row, counts.functor, counts.calls, counts.tries,
+                counts.unifications, counts.retries, counts.failures,
+                String.format("%.3f", counts.nanos / 1e6)));
+        return report.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public String toString () {
+        return explain();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -2,25 +2,206 @@ package norswap.sigh.interpreter;
 
 import norswap.sigh.ast.QueryArgNode;
 import norswap.sigh.ast.QueryNode;
-import norswap.sigh.ast.StringLiteralNode;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Stack;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class QuerySolver {
+/**
+ * Solves queries against a {@link RuleStorage} by SLD resolution, the way a Prolog machine does.
+ *
+ * <p>The solver is iterative: the goals left to solve are an explicit {@link Continuation}, the
+ * alternatives left to explore are kept on a stack of choice points ({@link ExecutionState}) and
+ * variable bindings are recorded on a trail so that they can be undone when backtracking. The
+ * depth of a query is therefore bounded by the heap and not by the thread stack. The trail and
+ * the choice point stack are arrays that are reused throughout the search.
+ *
+ * <p>Solutions are found one at a time, when they are requested from {@link #solutions}.
+ *
+ * <p>Goals whose predicate is tabled are resolved against answer tables instead of clauses, as
+ * described in {@link Tabling}.
+ *
+ * <p>Rule bodies can prune the search with control constructs. A cut ({@code !}) commits to the
+ * choices made since the rule was called: it removes the choice points pushed since then,
+ * including the one for the remaining clauses of the goal. {@code NOT g} (or {@code \+ g})
+ * succeeds, without binding anything, if {@code g} has no solution: {@code g} is solved by a
+ * separate solver that shares the variables of this one. {@code once(g)} keeps the first solution of
+ * {@code g}: it is solved as {@code g} followed by a cut that only removes the choice points of
+ * {@code g}.
+ *
+ * <p>A rule body with {@code OR} is solved through a disjunction goal: the goals that its branches
+ * start with are solved once, then a choice point tries each alternative in turn from the same
+ * bindings (see {@link Clause.Body}). A cut in a branch also removes the remaining alternatives.
+ *
+ * <p>Constraints over numbers ({@code A > 30}, {@code B = A + 1}) are evaluated when they are
+ * reached, by {@link Arithmetic}: their variables must be bound by the goals before them, except
+ * for the left side of {@code =}, which is unified with the value of the right side.
+ *
+ * <p>Queries can also be solved in parallel with {@link #solveParallel}, which explores the
+ * alternative clauses of the first goal in separate branches.
+ *
+ * <p>A solver can {@link #profile} the search, counting the calls, tries, retries and failures of
+ * each predicate (see {@link QueryProfile}). The solvers it uses for tables and negations, and the
+ * branches of a parallel search, count into the same profile.
+ *
+ * <p>The resources of a query can be {@link #limit limited} (see {@link QueryLimits}): the search is
+ * then aborted with a {@link QueryLimitException} when it runs out of steps, time or memory for
+ * bindings, or when it is cancelled. The limits are checked as the machine runs, so they also stop
+ * queries that never produce a solution.
+ *
+ * <p>A query sees the facts of the storage as they were when it started, even if facts are added
+ * or retracted while its solutions are being consumed. A solver whose solutions are not all
+ * consumed should be {@link #close closed}, so that the storage can reclaim retracted facts.
+ *
+ * <p>A solver solves one query at a time, but can then solve others, reusing its trail and choice
+ * point stack (see {@link #reset} and {@link QuerySolverPool}). All the state of a search is held
+ * by its solver, so that solvers can run in parallel on a storage that is not modified, such as a
+ * read-only one ({@link RuleStorage#publish}).
+ */
+public class QuerySolver implements AutoCloseable {
 
     RuleStorage ruleStorage;
-    private List<List<BoundedPair>> final_bindings;
-    private List<QueryArgNode> main_goals;
-    private List<BoundedPair> var_to_var;
+
+    // The variables of the query, by name, in order of appearance.
+    private final LinkedHashMap<String, Var> query_vars = new LinkedHashMap<>();
+
+    // The goals left to solve, and if the first one has been called, the references of the clauses
+    // that can match it and the index of the next one to try. If clauses is null, the first goal
+    // has yet to be called.
+    // For a tabled goal, clauses is TABLED and next is the index of the next answer of table.
+    // For a disjunction, clauses is ALTERNATIVES and next is the index of the next alternative.
+    private Continuation goals;
+    private IntList clauses;
+    private Table table;
+    private int next;
+    // Whether the search has started, in which case the machine holds the last solution found.
+    private boolean started = false;
+
+    private Var[] trail = new Var[64];
+    private int trail_top = 0;
+
+    private ExecutionState[] choicepoints = new ExecutionState[16];
+    private int choicepoint_top = 0;
+
+    // Scratch space for the dereferenced arguments of the goal being called.
+    private Object[] call_args = new Object[8];
+
+    // Scratch space for the terms bound to the variables of an answer while it is unified.
+    private Object[] answer_vars = new Object[8];
+
+    // The table this solver evaluates, or null if it solves a query.
+    private final Table owner;
+
+    // Solves the goals of negations, created when the first one is reached.
+    private QuerySolver negation_solver;
+
+    // Orders the goals of conjunctions, or null if they are solved in the order they are written.
+    private GoalOrderer orderer;
+
+    // Where the work of the search is counted, or null if it is not profiled.
+    private QueryProfile profile;
+
+    // The limits of the query, and their state once it has started (shared with the solvers of its
+    // tables and negations), or null if it is not limited.
+    private QueryLimits limits;
+    private QueryLimits.Budget budget;
+    // The number of solutions found so far.
+    private long found_count = 0;
+
+    // Set once the solutions of the search are no longer needed (for the branches of a parallel
+    // search, and the solvers of their tables and negations), or null.
+    private AtomicBoolean stop = null;
+
+    // The version of the storage whose clauses the solver sees (see RuleStorage#snapshot).
+    private int snapshot;
+    // Whether the solver has started a query that is not done yet.
+    private boolean running = false;
+
+    // Marks tabled goals in place of their clauses.
+    private static final IntList TABLED = new IntList(0);
+
+    // Marks disjunctions in place of clauses.
+    private static final IntList ALTERNATIVES = new IntList(0);
 
     public QuerySolver(RuleStorage ruleStorage) {
+        this(ruleStorage, null, null);
+    }
+
+    /**
+     * Creates a solver for the owner table (or for negations if it is null), which counts and
+     * limits its work as part of the search of {@code parent}, if not null.
+     */
+    QuerySolver(RuleStorage ruleStorage, Table owner, QuerySolver parent) {
         this.ruleStorage = ruleStorage;
-        this.final_bindings = new ArrayList<>();
-        this.main_goals = new ArrayList<>();
-        this.var_to_var = new ArrayList<>();
+        this.owner = owner;
+        this.orderer = ruleStorage.orderer();
+        this.snapshot = ruleStorage.snapshot();
+        if (parent != null) {
+            this.profile = parent.profile;
+            this.budget = parent.budget;
+            this.stop = parent.stop;
+            this.snapshot = parent.snapshot;
+        }
+    }
+
+    /**
+     * Counts the work of the search in {@code profile} (see {@link QueryProfile}), or stops
+     * counting if it is null (the default). Must be called before the search starts.
+     */
+    public void profile(QueryProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Limits the resources of the search (see {@link QueryLimits}), or removes the limits if
+     * {@code limits} is null (the default). Must be called before the search starts.
+     */
+    public void limit(QueryLimits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * Abandons the current query, if any, so that the solver can solve another one. Its profile
+     * and limits are kept. This is done automatically when a new query is started.
+     */
+    public void reset() {
+        close();
+        cut(0);
+        undo(0);
+        goals = null;
+        clauses = null;
+        table = null;
+        next = 0;
+        started = false;
+        found_count = 0;
+        budget = null;
+        stop = null;
+        query_vars.clear();
+        orderer = ruleStorage.orderer();
+    }
+
+    /**
+     * Signals that no more solutions will be requested from this solver. This is done
+     * automatically once all solutions have been found.
+     */
+    @Override
+    public void close() {
+        if (running) {
+            running = false;
+            ruleStorage.running.decrementAndGet();
+        }
     }
 
     /**
@@ -30,308 +211,860 @@ public class QuerySolver {
      * A BoundedPair is a basically a variable name and its value.
      */
     public Pair solve(QueryNode node) {
-        List<QueryArg> query_goals = get_queryArgs(node.getQueryArgs());
-        main_goals.addAll(node.getQueryArgs());
-        List<Rule> rules = rules_for(query_goals.get(0).name);
+        return solve(node, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #solve(QueryNode)}, but stops searching after {@code limit} solutions.
+     */
+    public Pair solve(QueryNode node, long limit) {
+        Iterator<List<BoundedPair>> iterator = solutions(node);
+        List<List<BoundedPair>> solutions = new ArrayList<>();
+        boolean success = false;
+        for (long n = 0; n < limit && iterator.hasNext(); n++) {
+            success = true;
+            List<BoundedPair> solution = iterator.next();
+            if (!solution.isEmpty()) {
+                solutions.add(solution);
+            }
+        }
+        close();
+        return success ? new Pair(true, solutions) : new Pair(false, null);
+    }
+
+    /**
+     * Returns an iterator over the solutions of the query, in the order in which they are found.
+     * Each solution lists the value of every variable of the query (it is empty if the query has
+     * no variables). Solutions are computed on demand: the search only proceeds when
+     * {@link Iterator#hasNext()} is called after the previous solution has been consumed, so
+     * that it can be stopped at any point.
+     *
+     * <p>A solver solves a single query at a time: calling this method again abandons the previous
+     * query (see {@link #reset}).
+     */
+    public Iterator<List<BoundedPair>> solutions(QueryNode node) {
+        start(node);
+        return new Iterator<List<BoundedPair>>() {
+            // null if the next solution hasn't been searched for yet
+            private Boolean found = null;
+
+            @Override public boolean hasNext() {
+                if (found == null) {
+                    found = next_solution();
+                }
+                return found;
+            }
+
+            @Override public List<BoundedPair> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                found = null;
+                return solution();
+            }
+        };
+    }
+
+    /**
+     * Returns a sequential stream over the solutions of the query, computed lazily as
+     * for {@link #solutions(QueryNode)}.
+     */
+    public Stream<List<BoundedPair>> stream(QueryNode node) {
+        Spliterator<List<BoundedPair>> spliterator = Spliterators.spliteratorUnknownSize(
+                solutions(node), Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false);
+    }
 
-        if (rules == null) {
-            return new Pair(false, null);
+    /**
+     * Solves the query on a fork-join pool, and returns its first {@code limit} solutions in the
+     * order in which {@link #solutions} would find them.
+     *
+     * <p>The clauses (or facts) that can match the first goal of the query are split into
+     * contiguous ranges, and each range is explored by a branch with its own solver, hence its own
+     * variables and trail. The solutions of the branches are concatenated in the order of the
+     * ranges, which is the sequential order. Once the branches that come first have found enough
+     * solutions, the others are stopped at their next step, and their solutions and exceptions
+     * are ignored, so that the query ends whenever the sequential search would.
+     *
+     * <p>The search is sequential if the first goal has a single candidate, if the rules of its
+     * predicate, or of the predicates they call, contain a cut, a negation or a once, whose
+     * pruning must be the same as in the sequential search, or if the storage has tabled
+     * predicates, whose tables cannot be shared between threads. The storage must not be modified
+     * during the search.
+     *
+     * <p>Like {@link #solutions}, this abandons the previous query of the solver, if any.
+     */
+    public List<List<BoundedPair>> solveParallel(QueryNode node, long limit, ForkJoinPool pool) {
+        start(node);
+        boolean tabling = ruleStorage.predicates().stream().anyMatch(p -> p.tabled);
+        boolean controlled = goals != null
+            && GoalOrderer.controlled(ruleStorage, false).contains(goals.goal.functor);
+        IntList candidates = tabling || controlled || goals == null
+            ? IntList.EMPTY
+            : clauses_for(goals.goal);
+        int branches = Math.min(candidates.size, pool.getParallelism() * 4);
+        if (limits != null) {
+            limit = Math.min(limit, limits.max_solutions);
+        }
+        if (branches < 2) {
+            return collect(limit, new AtomicBoolean());
         }
-        List<List<BoundedPair>> bindings = new ArrayList<>();
-        Stack<ExecutionState> backtrack = new Stack<ExecutionState>();
-        List<List<BoundedPair>> result = satisfy(backtrack, bindings, rules, query_goals);
 
-        if (result != null) {
-            link_var_to_var(result);
-            return new Pair(true, result);
+        long start = System.nanoTime();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<ForkJoinTask<List<List<BoundedPair>>>> tasks = new ArrayList<>(branches);
+        // Each branch counts in its own profile, which is added to this one once it is done.
+        QueryProfile[] profiles = new QueryProfile[branches];
+        for (int i = 0; i < branches; i++) {
+            IntList slice = candidates.slice(
+                (int) ((long) candidates.size * i / branches),
+                (int) ((long) candidates.size * (i + 1) / branches));
+            QuerySolver solver = new QuerySolver(ruleStorage);
+            if (profile != null) {
+                solver.profile(profiles[i] = new QueryProfile());
+            }
+            // Each branch counts its own steps, from the start time of the query.
+            if (budget != null) {
+                solver.limits = limits;
+                solver.budget = new QueryLimits.Budget(budget);
+            }
+            long branch_limit = limit;
+            tasks.add(pool.submit(() -> solver.branch(node, slice, branch_limit, stop)));
+        }
+
+        List<List<BoundedPair>> solutions = new ArrayList<>();
+        try {
+            for (ForkJoinTask<List<List<BoundedPair>>> task : tasks) {
+                if (solutions.size() == limit) {
+                    break;
+                }
+                for (List<BoundedPair> solution : task.join()) {
+                    if (solutions.size() == limit) {
+                        break;
+                    }
+                    solutions.add(solution);
+                }
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        } finally {
+            // The branches that were not joined are not needed, and may never end: stop them, and
+            // wait until they are done (ignoring their solutions and exceptions), so that their
+            // solvers are closed and their profiles complete.
+            stop.set(true);
+            for (ForkJoinTask<List<List<BoundedPair>>> task : tasks) {
+                task.cancel(false);
+                task.quietlyJoin();
+            }
         }
-        else {
-            return new Pair(false, null);
+        if (profile != null) {
+            for (QueryProfile branch : profiles) {
+                profile.add(branch);
+            }
+            // The branches share the call of the first goal.
+            ++profile.counters(goals.goal.functor).calls;
+            profile.solutions = solutions.size();
+            profile.nanos = System.nanoTime() - start;
         }
+        close();
+        return solutions;
     }
 
     /**
-     * Takes the final bindings and replace temporary logic variables
-     * with the final ones
-     * @param bindings
+     * Solves the query, trying only the given clauses for its first goal, and returns at most
+     * {@code limit} solutions.
      */
-    private void link_var_to_var(List<List<BoundedPair>> bindings) {
-        for (List<BoundedPair> binding : bindings) {
-            for (BoundedPair bd : binding) {
-                for (BoundedPair var_bd : var_to_var) {
-                    if (bd.getLogicVar().equals(var_bd.getTerm())) {
-                        bd.changeLogicVar(var_bd.getLogicVar());
-                    }
+    private List<List<BoundedPair>> branch(QueryNode node, IntList first, long limit, AtomicBoolean stop) {
+        start(node);
+        this.stop = stop;
+        clauses = first;
+        next = 0;
+        return collect(limit, stop);
+    }
+
+    /**
+     * Returns the next {@code limit} solutions, or those found before {@code stop} is set.
+     */
+    private List<List<BoundedPair>> collect(long limit, AtomicBoolean stop) {
+        List<List<BoundedPair>> solutions = new ArrayList<>();
+        while (solutions.size() < limit && !stop.get() && next_solution()) {
+            solutions.add(solution());
+        }
+        close();
+        return solutions;
+    }
+
+    private void start(QueryNode node) {
+        if (started || goals != null) {
+            reset();
+        }
+        if (limits != null && budget == null) {
+            budget = new QueryLimits.Budget(limits);
+        }
+        snapshot = ruleStorage.snapshot();
+        running = true;
+        ruleStorage.running.incrementAndGet();
+        List<QueryArgNode> args = node.getQueryArgs();
+        QueryArg[] query_goals = new QueryArg[args.size()];
+        for (int i = 0; i < query_goals.length; i++) {
+            QueryArgNode arg = args.get(i);
+            query_goals[i] = goal(Functor.of(arg.name, arg.arity), arg, query_vars);
+        }
+        // The goals are built in order first, so that variables are reported in that order.
+        int[] order = null;
+        if (orderer != null) {
+            Functor[] functors = new Functor[query_goals.length];
+            Object[][] goal_args = new Object[query_goals.length][];
+            for (int i = 0; i < query_goals.length; i++) {
+                functors[i] = query_goals[i].functor;
+                goal_args[i] = query_goals[i].args;
+            }
+            order = orderer.order(functors, goal_args, null, new HashSet<>());
+        }
+        goals = null;
+        for (int i = query_goals.length - 1; i >= 0; i--) {
+            goals = new Continuation(query_goals[order == null ? i : order[i]], goals);
+        }
+    }
+
+    /**
+     * Evaluates the clauses of the owner table, adding all the answers found to it.
+     */
+    void fill() {
+        Functor functor = owner.functor;
+        Object[] args = new Object[functor.arity];
+        Var[] vars = new Var[functor.arity];
+        for (int i = 0; i < args.length; i++) {
+            int code = owner.pattern[i];
+            if (code >= 0) {
+                args[i] = AtomTable.box(code);
+            } else {
+                int k = -code - 1;
+                if (vars[k] == null) {
+                    vars[k] = new Var("T" + k);
                 }
+                args[i] = vars[k];
             }
         }
+        // The goal is resolved against the clauses, not the table.
+        goals = new Continuation(
+            new QueryArg(functor, ruleStorage.getPredicate(functor), args, false), null);
+
+        int[] answer = new int[args.length];
+        while (next_solution()) {
+            encode(args, answer);
+            ruleStorage.tabling().add(owner, answer);
+        }
     }
 
     /**
-     * Takes the goals of the query and put them in a form
-     * more readable for the algorithm
-     * @param query_args_node
-     * @return A list of QueryArg
+     * Runs the machine until the next solution, backtracking out of the previous one if any.
+     * Returns false if there are no more solutions.
      */
-    private List<norswap.sigh.interpreter.QueryArg> get_queryArgs(List<QueryArgNode> query_args_node) {
-        List<norswap.sigh.interpreter.QueryArg> query_args = new ArrayList<>();
-        for (int i = 0; i < query_args_node.size(); i++) {
-            QueryArgNode curr = query_args_node.get(i);
-            HashMap<Integer, String> terms = new HashMap<Integer, String>();
-            HashMap<Integer, StringLiteralNode> curr_terms = curr.terms;
-            for (Integer key : curr_terms.keySet()) {
-                terms.put(key, curr_terms.get(key).value);
+    private boolean next_solution() {
+        if (limits != null && found_count == limits.max_solutions) {
+            close();
+            return false;
+        }
+        // The time of the search is that of the solver of the query, which includes its tables.
+        boolean timed = profile != null && owner == null;
+        long start = timed ? System.nanoTime() : 0;
+        boolean found;
+        try {
+            found = (!started || backtrack()) && run();
+        } catch (RuntimeException e) {
+            // e.g. a limit was exceeded, or a constraint could not be evaluated
+            close();
+            throw e;
+        }
+        started = true;
+        if (found) {
+            ++found_count;
+        }
+        if (timed) {
+            profile.nanos += System.nanoTime() - start;
+            if (found) {
+                ++profile.solutions;
             }
-            query_args.add(new norswap.sigh.interpreter.QueryArg(curr.name, curr.arity, terms, curr.logic_var, curr.arg_list));
         }
-        return query_args;
+        if (!found) {
+            close();
+        }
+        return found;
+    }
+
+    /**
+     * Returns the value of each query variable in the current solution. Variables that are left
+     * unbound are reported as their name prefixed by an underscore.
+     */
+    private List<BoundedPair> solution() {
+        List<BoundedPair> solution = new ArrayList<>(query_vars.size());
+        for (Map.Entry<String, Var> entry : query_vars.entrySet()) {
+            solution.add(new BoundedPair(entry.getKey(), term_name(deref(entry.getValue()))));
+        }
+        return solution;
     }
 
     /**
-     * @param backtrack : Stack of execution states
-     * @param bindings : List of pairs (logicVariable, term)
-     * @param goals : goals to achieve
-     * @param rules : rules linked with the goals
-     * @return A List of bindings that satisfies the query
+     * Returns the source representation of a dereferenced term.
      */
-    private List<List<BoundedPair>> satisfy(Stack<ExecutionState> backtrack, List<List<BoundedPair>> bindings,
-                                            List<Rule> rules, List<QueryArg> goals) {
-        // 1: All goals solved: solution found.
-        // 2: No more rules for first goal, backtrack to last choice point, or fail.
-        // 3: Try the next rule for the current goal.
-        if (goals.isEmpty()) {
-            if (!bindings.isEmpty()) {store_result(bindings);}
-            if (! backtrack.isEmpty()) {
-                ExecutionState state = backtrack.elementAt(0);
-                List<List<BoundedPair>> next = satisfy(new Stack<ExecutionState>(), new ArrayList<>(), state.getRules(), state.getGoals());
+    private static String term_name(Object term) {
+        return term instanceof Integer ? AtomTable.name((Integer) term) : term.toString();
+    }
+
+    /**
+     * Builds the goal corresponding to {@code node}, using the variables in {@code vars}
+     * and adding to it the variables that are not in it yet.
+     */
+    private QueryArg goal(Functor functor, QueryArgNode node, Map<String, Var> vars) {
+        Object[] args = new Object[node.arity];
+        for (int i = 0; i < args.length; i++) {
+            Object arg = node.arg_list.get(i);
+            if (arg instanceof String) {
+                args[i] = vars.computeIfAbsent((String) arg, Var::new);
+            } else {
+                args[i] = AtomTable.box(Clause.atom(arg));
+            }
+        }
+        Predicate predicate = ruleStorage.getPredicate(functor);
+        return new QueryArg(functor, predicate, args, predicate != null && predicate.tabled);
+    }
+
+    /**
+     * Runs the machine until all goals are solved (returns true) or there are no alternatives
+     * left to explore (returns false).
+     */
+    private boolean run() {
+        while (goals != null) {
+            if (budget != null) {
+                budget.step();
+            }
+            if (stop != null && stop.get()) {
+                return false;
+            }
+            // The counters of the goal if it is profiled, and when its step started.
+            QueryProfile.Counters counters = null;
+            long start = 0;
+            if (profile != null && goals.goal.control == QueryArg.GOAL) {
+                counters = profile.counters(goals.goal.functor);
+                start = System.nanoTime();
+            }
+            if (clauses == null) {
+                QueryArg goal = goals.goal;
+                if (goal.control == QueryArg.OR) {
+                    clauses = ALTERNATIVES;
+                } else if (goal.control != QueryArg.GOAL) {
+                    if (!control(goal) && !backtrack()) {
+                        return false;
+                    }
+                    continue;
+                } else if (goal.tabled) {
+                    table = table_for(goal);
+                    clauses = TABLED;
+                } else {
+                    clauses = clauses_for(goal);
+                }
+                next = 0;
+                if (counters != null) {
+                    ++counters.calls;
+                }
+            }
+            boolean called = call(counters);
+            if (counters != null) {
+                counters.nanos += System.nanoTime() - start;
+                if (!called) {
+                    ++counters.failures;
+                }
+            }
+            if (!called && !backtrack()) {
+                return false;
             }
-            return final_bindings;
         }
-        else if (rules.isEmpty()) {
-            if (backtrack.isEmpty()) {return null;}
-            else {return doBacktrack(backtrack);}
+        return true;
+    }
+
+    /**
+     * Executes the control construct that is the first goal (see {@link QueryArg}). Returns false
+     * if it fails.
+     */
+    private boolean control(QueryArg goal) {
+        switch (goal.control) {
+            case QueryArg.CUT:
+                cut(goal.barrier);
+                goals = goals.next;
+                return true;
+            case QueryArg.NOT:
+                if (provable(goal.inner)) {
+                    return false;
+                }
+                goals = goals.next;
+                return true;
+            case QueryArg.EVAL:
+                boolean holds = evaluate(goal);
+                if (profile != null) {
+                    QueryProfile.Counters counters = profile.counters(goal.functor);
+                    ++counters.calls;
+                    if (!holds) {
+                        ++counters.failures;
+                    }
+                }
+                if (!holds) {
+                    return false;
+                }
+                goals = goals.next;
+                return true;
+            default: // ONCE
+                QueryArg cut = new QueryArg(QueryArg.CUT, null, choicepoint_top);
+                goals = new Continuation(goal.inner, new Continuation(cut, goals.next));
+                return true;
         }
-        else {
-            return tryRule(backtrack, bindings, rules, goals);
+    }
+
+    /**
+     * Whether the constraint that is the goal holds. A constraint {@code T = E}, where {@code T}
+     * is a variable or a number, unifies {@code T} with the value of {@code E}.
+     */
+    private boolean evaluate(QueryArg goal) {
+        Arithmetic constraint = goal.constraint;
+        if (constraint.op == Arithmetic.UNIFY && constraint.left.op == Arithmetic.ARG) {
+            Integer value = Arithmetic.atom(constraint.right.eval(goal.args));
+            return unify_term(goal.args[constraint.left.arg], value);
         }
+        return constraint.holds(goal.args);
     }
 
     /**
-     * Pop the first execution state on the stack and run with it
+     * Removes the choice points above {@code barrier}.
      */
-    private List<List<BoundedPair>> doBacktrack(Stack<ExecutionState> backtrack) {
-        ExecutionState state = backtrack.pop();
-        if (!state.getBindings().isEmpty()) {
-            state.getBindings().remove(state.getBindings().size()-1);
+    private void cut(int barrier) {
+        while (choicepoint_top > barrier) {
+            choicepoints[--choicepoint_top].clear();
         }
-        return satisfy(backtrack, state.getBindings(), state.getRules(), state.getGoals());
     }
 
     /**
-     * @param backtrack : stack where the Execution states are stored
-     * @param rules : rules with the same head as the goal
-     * @param bindings : List of pairs (logicVariable, term)
-     * @param goals : goals left to satisfy
-     * @return The List of bindings enhanced with the bindings that
-     * satisfy the first rule for the first goal
+     * Whether the goal has a solution. Its variables are left as they are.
      */
-    private List<List<BoundedPair>> tryRule(Stack<ExecutionState> backtrack, List<List<BoundedPair>> bindings,
-                                            List<Rule> rules, List<QueryArg> goals) {
-        QueryArg goal = goals.get(0);
-        List<List<BoundedPair>> new_bindings = bindings;
+    private boolean provable(QueryArg goal) {
+        QuerySolver solver = negation_solver;
+        if (solver == null) {
+            solver = negation_solver = new QuerySolver(ruleStorage, owner, this);
+        }
+        // The solver is kept across queries (see reset), which may have other profiles and limits.
+        solver.snapshot = snapshot;
+        solver.orderer = orderer;
+        solver.profile = profile;
+        solver.budget = budget;
+        solver.stop = stop;
+        solver.goals = new Continuation(goal, null);
+        solver.clauses = null;
+        try {
+            return solver.run();
+        } finally {
+            solver.cut(0);
+            solver.undo(0);
+            solver.goals = null;
+            solver.clauses = null;
+            solver.table = null;
+        }
+    }
 
-        Rule rule = rules.get(0);
-        if (rule.arity.equals(goal.arity) && rule.head.equals(goal.name)) {
-            List<List<BoundedPair>> uni = unify(goal, rule, new_bindings);
-            if (uni != null) { // If we have a result, we store de execution state on the backtrack stack and call
-                // satisfy with the next goal.
-                new_bindings = uni;
-                rules.remove(0);
-                backtrack.push(new ExecutionState(new ArrayList<>(goals), rules, new_bindings));
-                goals.remove(0);
-                if (! goals.isEmpty()) {
-                    List<Rule> rules_for_next_goal = rules_for(goals.get(0).name);
-                    List<QueryArg> new_goals = look_for_linked_var(bindings, goals);
-                    return satisfy(backtrack, new_bindings, rules_for_next_goal, new_goals);
-                } else{return satisfy(backtrack, new_bindings, rules, goals);}
+    /**
+     * Tries the clauses left for the first goal, starting at {@link #next}. On success, replaces the
+     * goal by the tails of the matching clause and pushes a choice point if other clauses are left.
+     * The tries are counted in {@code counters} if it is not null.
+     */
+    private boolean call(QueryProfile.Counters counters) {
+        if (clauses == TABLED) {
+            return call_table(counters);
+        }
+        if (clauses == ALTERNATIVES) {
+            return call_alternative();
+        }
+        QueryArg goal = goals.goal;
+        // Cuts in the body of the clause remove the choice points above this one.
+        int barrier = choicepoint_top;
+        int trail_mark = trail_top;
+        while (next < clauses.size) {
+            int ref = clauses.items[next++];
+            if (!goal.predicate.visible(ref, snapshot)) {
+                continue;
+            }
+            Continuation rest = ref >= 0
+                ? unify_fact(goal, ref, goals.next)
+                : unify(goal, goal.predicate.rule(ref), goals.next, barrier);
+            if (counters != null) {
+                ++counters.tries;
+                if (rest != FAILURE) {
+                    ++counters.unifications;
+                }
             }
-            else {
-                rules.remove(0);
-                return satisfy(backtrack, bindings, rules, goals);
+            if (rest != FAILURE) {
+                if (next < clauses.size) {
+                    push_choicepoint(trail_mark);
+                }
+                goals = rest;
+                clauses = null;
+                return true;
             }
+            undo(trail_mark);
         }
-        else { //The rule fail, then we remove it and call satisfy
-            rules.remove(0);
-            return satisfy(backtrack, bindings, rules, goals);
+        return false;
+    }
+
+    /**
+     * Like {@link #call}, but tries the answers left in the table of the first goal. Unless the
+     * table is complete, answers may still be added to it: the choice point is kept even if there
+     * are no answers left to try.
+     */
+    private boolean call_table(QueryProfile.Counters counters) {
+        QueryArg goal = goals.goal;
+        int trail_mark = trail_top;
+        while (next < table.answers.count) {
+            boolean unified = unify_answer(goal, table, next++);
+            if (counters != null) {
+                ++counters.tries;
+                if (unified) {
+                    ++counters.unifications;
+                }
+            }
+            if (unified) {
+                if (next < table.answers.count || table.state != Table.COMPLETE) {
+                    push_choicepoint(trail_mark);
+                }
+                goals = goals.next;
+                clauses = null;
+                table = null;
+                return true;
+            }
+            undo(trail_mark);
         }
+        return false;
+    }
 
-        // We try a rule, and add the bindings for this rule.
-        // If the first rule fails, we call satisfy again while removing this precise rule.
-        // If we have a result, we store the running state, and call satisfy again with the next goal.
+    /**
+     * Like {@link #call}, but continues with the alternatives left of the disjunction that is the
+     * first goal. The goals that come before the disjunction in the body of the rule have been
+     * solved once, and their bindings are shared by all the alternatives.
+     */
+    private boolean call_alternative() {
+        Continuation[] alternatives = goals.goal.alternatives;
+        Continuation rest = alternatives[next++];
+        if (next < alternatives.length) {
+            push_choicepoint(trail_top);
+        }
+        goals = rest;
+        clauses = null;
+        return true;
     }
 
+    /**
+     * Pop the last execution state on the stack and resume from it.
+     * Returns false if there is no execution state left.
+     */
+    private boolean backtrack() {
+        if (choicepoint_top == 0) {
+            return false;
+        }
+        ExecutionState state = choicepoints[--choicepoint_top];
+        undo(state.trail_mark);
+        goals = state.goals;
+        clauses = state.clauses;
+        table = state.table;
+        next = state.next;
+        state.clear();
+        if (profile != null && clauses != ALTERNATIVES) {
+            ++profile.counters(goals.goal.functor).retries;
+        }
+        return true;
+    }
+
+    private void push_choicepoint(int trail_mark) {
+        if (choicepoint_top == choicepoints.length) {
+            choicepoints = Arrays.copyOf(choicepoints, choicepoint_top * 2);
+        }
+        ExecutionState state = choicepoints[choicepoint_top];
+        if (state == null) {
+            state = choicepoints[choicepoint_top] = new ExecutionState();
+        }
+        state.set(goals, clauses, table, next, trail_mark);
+        ++choicepoint_top;
+        if (budget != null) {
+            budget.hold(trail_top + choicepoint_top);
+        }
+    }
+
+    // Returned by unify when the goal and the rule cannot be unified.
+    private static final Continuation FAILURE = new Continuation(null, null);
+
     /**
      * The goal and the rule is unified if we can find logic variables such that
      * the goal and the rule are equal
      *
      * @param goal : goal to unify with the rule
      * @param rule : rule to unify with the goal
-     * @param bindings : List of pairs (logicVariable, term)
+     * @param rest : the goals to solve after this one
+     * @param barrier : the choice points that cuts in the body of the rule must not remove
      *
-     * @return The List of bindings enhanced with the bindings that
-     * unify the goal and the rule
-     */
-    private List<List<BoundedPair>> unify(QueryArg goal, Rule rule, List<List<BoundedPair>> bindings) {
-        int size = goal.arity;
-        HashMap<Integer, String> terms = goal.terms;
-        HashMap<Integer, String> logic_vars = goal.logic_var;
-        List<Object> rule_args = rule.get_head_args();
-
-        if (rule.is_fact()) {
-            List<BoundedPair> tmp = new ArrayList<>();
-            for (int i = 0; i < size; i++) {
-                if (terms.containsKey(i)) {
-                    if (! terms.get(i).equals(((StringLiteralNode) rule_args.get(i)).value)) {
-                        return null;
-                    }
-                }
-                else if (logic_vars.containsKey(i)) {
-                    tmp.add(new BoundedPair(logic_vars.get(i), ((StringLiteralNode) rule_args.get(i)).value));
+     * @return The goals to solve after unification: the tails of the rule followed by
+     * {@code rest}, or {@link #FAILURE}.
+     */
+    private Continuation unify(QueryArg goal, Rule rule, Continuation rest, int barrier) {
+        Object[] args = goal.args;
+        Clause clause = rule.clause;
+        // The variables of the rule, renamed apart, by slot. The first occurrence of a variable
+        // in the head simply stands for the corresponding argument of the goal.
+        Object[] env = new Object[clause.var_count];
+        for (int i = 0; i < args.length; i++) {
+            int slot = clause.head[i];
+            if (env[slot] == null) {
+                env[slot] = args[i];
+            } else if (!unify_term(env[slot], args[i])) {
+                return FAILURE;
+            }
+        }
+        if (clause.body != null) {
+            return body(clause, clause.body, env, rest, barrier);
+        }
+        int[] order = orderer == null ? null : orderer.order(rule, bound_mask(args));
+        for (int i = clause.tails.length - 1; i >= 0; i--) {
+            int tail = order == null ? i : order[i];
+            rest = new Continuation(goal(clause, tail, env, barrier), rest);
+        }
+        return rest;
+    }
+
+    /**
+     * Builds the goals of a disjunctive body (see {@link Clause.Body}), followed by {@code rest}.
+     * Its goals are solved in the order they are written.
+     */
+    private Continuation body(Clause clause, Clause.Body body, Object[] env, Continuation rest,
+            int barrier) {
+        if (body.alternatives != null) {
+            Continuation[] alternatives = new Continuation[body.alternatives.length];
+            for (int i = 0; i < alternatives.length; i++) {
+                alternatives[i] = body(clause, body.alternatives[i], env, rest, barrier);
+            }
+            rest = new Continuation(new QueryArg(alternatives), rest);
+        }
+        for (int i = body.goals.length - 1; i >= 0; i--) {
+            rest = new Continuation(goal(clause, body.goals[i], env, barrier), rest);
+        }
+        return rest;
+    }
+
+    /**
+     * Builds the goal for the {@code i}-th tail of the clause, whose variables are bound in {@code
+     * env} (by slot). The variables that are not in it yet are created and added to it. A cut
+     * removes the choice points above {@code barrier}.
+     */
+    private QueryArg goal(Clause clause, int i, Object[] env, int barrier) {
+        int control = clause.controls[i];
+        if (control == QueryArg.CUT) {
+            return new QueryArg(QueryArg.CUT, null, barrier);
+        }
+        int[] codes = clause.args[i];
+        Object[] args = new Object[codes.length];
+        for (int j = 0; j < args.length; j++) {
+            int code = codes[j];
+            if (code >= 0) {
+                args[j] = AtomTable.box(code);
+            } else {
+                Object var = env[-code - 1];
+                if (var == null) {
+                    var = env[-code - 1] = new Var(clause.var_names[-code - 1]);
                 }
+                args[j] = var;
             }
-            if (!tmp.isEmpty()) {
-                bindings.add(tmp);
+        }
+        Functor functor = clause.tails[i];
+        if (control == QueryArg.EVAL) {
+            return new QueryArg(functor, args, clause.constraints[i]);
+        }
+        Predicate predicate = ruleStorage.getPredicate(functor);
+        QueryArg goal = new QueryArg(functor, predicate, args, predicate != null && predicate.tabled);
+        return control == QueryArg.GOAL ? goal : new QueryArg(control, goal, barrier);
+    }
+
+    /**
+     * Returns the mask of the arguments that are bound to atoms (see {@link GoalOrderer#order(Rule,
+     * int)}).
+     */
+    private static int bound_mask(Object[] args) {
+        int mask = 0;
+        for (int i = 0; i < args.length && i < GoalOrderer.MASK_BITS; i++) {
+            if (deref(args[i]) instanceof Integer) {
+                mask |= 1 << i;
             }
         }
-        else {
-            // We start from the principle that all the variables are differents.
-            // The idea is to watch in the bindings if some variables in the goals are already linked.
-            // We will then modify the goals by replacing the variables by their values.
-            List<QueryArg> tail_goals = get_queryArgs(rule.tails);
+        return mask;
+    }
 
-            if (!terms.isEmpty()) {
-                tail_goals = link_var_terms(tail_goals, terms, rule_args);
+    /**
+     * Unifies the goal with the fact at {@code row} in the columnar store of its predicate.
+     * Returns {@code rest}, or {@link #FAILURE}.
+     */
+    private Continuation unify_fact(QueryArg goal, int row, Continuation rest) {
+        Object[] args = goal.args;
+        int[][] columns = goal.predicate.columns();
+        for (int i = 0; i < args.length; i++) {
+            if (!unify_atom(args[i], columns[i][row])) {
+                return FAILURE;
             }
-            List<Rule> tail_rules = rules_for(tail_goals.get(0).name);
-            //If no rules for the goals, then null
-            if (tail_rules == null) {
-                return null;
+        }
+        return rest;
+    }
+
+    /**
+     * Unifies the goal with the {@code i}-th answer of the table (see {@link Table} for the
+     * encoding of answers).
+     */
+    private boolean unify_answer(QueryArg goal, Table table, int i) {
+        Object[] args = goal.args;
+        int[] answers = table.answers.tuples;
+        int offset = i * args.length;
+        if (answer_vars.length < args.length) {
+            answer_vars = new Object[args.length];
+        }
+        boolean unified = true;
+        for (int j = 0; j < args.length && unified; j++) {
+            int code = answers[offset + j];
+            if (code >= 0) {
+                unified = unify_atom(args[j], code);
+            } else if (answer_vars[-code - 1] == null) {
+                answer_vars[-code - 1] = args[j];
+            } else {
+                unified = unify_term(answer_vars[-code - 1], args[j]);
             }
+        }
+        Arrays.fill(answer_vars, 0, args.length, null);
+        return unified;
+    }
 
-            List<List<BoundedPair>> tail_bindings = new ArrayList<>();
-            Stack<ExecutionState> tail_backtrack = new Stack<ExecutionState>();
-            List<List<BoundedPair>> bindings_for_this_rule = satisfy(tail_backtrack, tail_bindings, tail_rules, tail_goals);
+    private boolean unify_term(Object a, Object b) {
+        a = deref(a);
+        b = deref(b);
+        if (a == b) {
+            return true;
+        } else if (a instanceof Var) {
+            bind((Var) a, b);
+            return true;
+        } else if (b instanceof Var) {
+            bind((Var) b, a);
+            return true;
+        } else {
+            // distinct atoms have distinct boxes
+            return false;
+        }
+    }
 
-            if (bindings_for_this_rule != null) {
-                for (QueryArgNode main_goal : main_goals) {
-                    if (main_goal.name.equals(rule.head) && main_goal.arity == rule.arity) {
-                        for (Integer key : main_goal.logic_var.keySet()) {
-                            var_to_var.add(new BoundedPair(main_goal.logic_var.get(key), (String) rule_args.get(key)));
-                        }
-                    }
-                }
-            } else {return null;}
-            // TODO: Delete archives
-            /*
-                bindings.add(get_true_bindings(bindings_for_this_rule));
-                //bindings.addAll(bindings_for_this_rule);
-            } else {return null;}
-             */
-        }
-        return bindings;
-    }
-
-    /**
-     * Look vor variables that are already linked to a term in a rule
-     * and binds those same variables that are not linked yet to the same term
-     */
-    private List<QueryArg> look_for_linked_var(List<List<BoundedPair>> bindings, List<QueryArg> goals) {
-        List<QueryArg> new_goals = new ArrayList<>(goals);
-        for (List<BoundedPair> binding : bindings) {
-            for (BoundedPair bp : binding) {
-                String curr_logic_var = bp.getLogicVar();
-                for(int i= 0; i < new_goals.size(); i++) {
-                    QueryArg curr_goal = new_goals.get(i);
-                    HashMap<Integer, String> new_terms = new HashMap<>(curr_goal.terms);
-                    HashMap<Integer, String> new_logic_var = new HashMap<>();
-
-                    if (curr_goal.logic_var.containsValue(curr_logic_var)) {
-                        for (Integer key : curr_goal.logic_var.keySet()) {
-                            if (curr_goal.logic_var.get(key).equals(curr_logic_var)) {
-                                new_terms.put(key, bp.getTerm());
-                            } else {new_logic_var.put(key, curr_goal.logic_var.get(key));}
-                        }
-                    } else {
-                        new_logic_var = curr_goal.logic_var;
-                    }
+    private boolean unify_atom(Object term, int atom) {
+        term = deref(term);
+        if (term instanceof Var) {
+            bind((Var) term, AtomTable.box(atom));
+            return true;
+        }
+        return (Integer) term == atom;
+    }
 
-                    new_goals.remove(i);
-                    new_goals.add(i, new QueryArg(curr_goal.name, curr_goal.arity, new_terms, new_logic_var,
-                            get_arg_list(curr_goal.arity, new_terms, new_logic_var)));
-                }
-            }
+    static Object deref(Object term) {
+        while (term instanceof Var && ((Var) term).ref != null) {
+            term = ((Var) term).ref;
+        }
+        return term;
+    }
+
+    private void bind(Var var, Object term) {
+        var.ref = term;
+        if (trail_top == trail.length) {
+            trail = Arrays.copyOf(trail, trail_top * 2);
+        }
+        trail[trail_top++] = var;
+        if (budget != null) {
+            budget.hold(trail_top + choicepoint_top);
         }
-        return new_goals;
     }
 
     /**
-     * Look for terms in goal args and bind the corrponding variables to this term
+     * Unbinds the variables bound since the trail had size {@code trail_mark}.
      */
-    private List<QueryArg> link_var_terms(List<QueryArg> goals, HashMap<Integer, String> terms, List<Object> rule_args) {
-        List<QueryArg> new_goals = new ArrayList<>();
-        for(int i = 0; i < goals.size(); i++) {
-            QueryArg current_goal = goals.get(i);
-            HashMap<Integer, String> new_terms = new HashMap<>(current_goal.terms);
-            HashMap<Integer, String> new_logic_var = new HashMap<>();
-            for (Integer key : terms.keySet()) {
-                String var_to_change = (String) rule_args.get(key);
-                for (Integer key_logic : current_goal.logic_var.keySet()) {
-                    if (current_goal.logic_var.get(key_logic).equals(var_to_change)) {
-                        new_terms.put(key_logic, terms.get(key));
-                    }
-                    else{new_logic_var.put(key_logic, current_goal.logic_var.get(key_logic));}
+    private void undo(int trail_mark) {
+        while (trail_top > trail_mark) {
+            Var var = trail[--trail_top];
+            var.ref = null;
+            trail[trail_top] = null;
+        }
+    }
+
+    /**
+     * Encodes the (dereferenced) arguments as described in {@link Table}.
+     */
+    private static void encode(Object[] args, int[] out) {
+        int vars = 0;
+        for (int i = 0; i < args.length; i++) {
+            Object term = deref(args[i]);
+            if (term instanceof Integer) {
+                out[i] = (Integer) term;
+                continue;
+            }
+            int code = 0;
+            for (int j = 0; j < i && code == 0; j++) {
+                if (out[j] < 0 && deref(args[j]) == term) {
+                    code = out[j];
                 }
             }
-            new_goals.add(new QueryArg(current_goal.name, current_goal.arity, new_terms, new_logic_var,
-                    get_arg_list(current_goal.arity, new_terms, new_logic_var)));
+            out[i] = code != 0 ? code : -(++vars);
         }
-        return new_goals;
     }
 
     /**
-     *
-     * @param arity
-     * @param terms
-     * @param logic_var
-     * @return new arg_list with terms in place of logic variables already linked to this term
+     * Returns the table for the tabled goal, evaluating it if needed, and records that the
+     * owner of this solver depends on it if it is not complete.
      */
-    private List<Object> get_arg_list(Integer arity, HashMap<Integer, String> terms, HashMap<Integer, String> logic_var) {
-        List<Object> new_arg_list = new ArrayList<>();
-        for(int i = 0; i < arity; i++) {
-            if (terms.containsKey(i)) {
-                new_arg_list.add(terms.get(i));
+    private Table table_for(QueryArg goal) {
+        Tabling tabling = ruleStorage.tabling();
+        int[] pattern = new int[goal.args.length];
+        encode(goal.args, pattern);
+        Table table = tabling.table(goal.functor, pattern, snapshot);
+
+        if (table.state == Table.EVALUATING) {
+            depend_on(table.dfn);
+        } else if (table.state != Table.COMPLETE) {
+            if (table.state == Table.NEW || table.evaluated_at != tabling.answers) {
+                tabling.evaluate(table, ruleStorage, this);
             }
-            else {
-                new_arg_list.add(logic_var.get(i));
+            if (table.state != Table.COMPLETE) {
+                depend_on(table.low);
             }
         }
-        return new_arg_list;
+        if (table.state != Table.COMPLETE) {
+            ++tabling.incomplete_calls;
+        }
+        return table;
     }
 
+    private void depend_on(int position) {
+        if (owner != null && position < owner.low) {
+            owner.low = position;
+        }
+    }
 
     /**
-     * Take the name of a goal and return a list of rules which have
-     * the predicate 'name' on the left side
+     * Take a goal and return the references of the clauses which have its predicate on the left
+     * side and can match the terms it binds, as selected by the argument indexes of the storage
      */
-    private List<Rule> rules_for(String name) {
-        if (ruleStorage.contains(name)) {
-            List<Rule> rules = new ArrayList<>(ruleStorage.getRule(name));
-            return rules;
-        } else {return null;}
-    }
-
-    private void store_result(List<List<BoundedPair>> bindings) {
-        final_bindings.addAll(bindings);
+    private IntList clauses_for(QueryArg goal) {
+        if (goal.predicate == null) {
+            return IntList.EMPTY;
+        }
+        Object[] args = goal.args;
+        if (call_args.length < args.length) {
+            call_args = new Object[args.length];
+        }
+        for (int i = 0; i < args.length; i++) {
+            call_args[i] = deref(args[i]);
+        }
+        return goal.predicate.candidates(call_args);
     }
 }
-
@@ -0,0 +1,81 @@
+package norswap.sigh.interpreter;
+
+import norswap.sigh.ast.QueryNode;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * A pool of {@link QuerySolver}s for a storage, so that threads that run many queries reuse
+ * solvers, and the trails and choice point stacks they have grown, instead of allocating new ones
+ * for each query. The pool itself is thread-safe, and each solver is used by one thread at a time.
+ *
+ * <p>To run queries from many threads at once, the storage must not be modified while they run:
+ * pool over a read-only copy of it ({@link RuleStorage#publish}).
+ */
+public final class QuerySolverPool
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final RuleStorage storage;
+
+    // Most recently released first, as its arrays are more likely to be in the cache.
+    private final ConcurrentLinkedDeque<QuerySolver> idle = new ConcurrentLinkedDeque<>();
+
+    // ---------------------------------------------------------------------------------------------
+
+    public QuerySolverPool (RuleStorage storage) {
+        this.storage = storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the storage that the solvers of the pool query.
+     */
+    public RuleStorage storage () {
+        return storage;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns an idle solver, or a new one if there is none. It must be {@link #release released}
+     * once its query is done.
+     */
+    public QuerySolver acquire ()
+    {
+        QuerySolver solver = idle.pollFirst();
+        return solver != null ? solver : new QuerySolver(storage);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the solver to the pool, abandoning its query if it is not done, and removing its
+     * profile and limits. The solver must not be used afterwards.
+     */
+    public void release (QuerySolver solver)
+    {
+        solver.reset();
+        solver.profile(null);
+        solver.limit(null);
+        idle.addFirst(solver);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Solves the query with a solver of the pool (see {@link QuerySolver#solve(QueryNode, long)}).
+     */
+    public Pair solve (QueryNode node, long limit)
+    {
+        QuerySolver solver = acquire();
+        try {
+            return solver.solve(node, limit);
+        } finally {
+            release(solver);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -0,0 +1,100 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * A set of tuples of atom ids (see {@link AtomTable}) of fixed arity, kept in insertion order.
+ * Tuple {@code i} is stored at {@code tuples[i * arity .. (i + 1) * arity)}.
+ *
+ * <p>Tuples can only be added, so that a range of tuple ids designates the tuples added between
+ * two points in time.
+ */
+final class Relation
+{
+    // ---------------------------------------------------------------------------------------------
+
+    final int arity;
+    int[] tuples;
+    int count = 0;
+
+    // Open addressing hash set of tuples: id of the tuple + 1, or 0 for an empty slot.
+    private int[] slots = new int[16];
+
+    // ---------------------------------------------------------------------------------------------
+
+    Relation (int arity) {
+        this.arity = arity;
+        this.tuples = new int[Math.max(arity, 1) * 8];
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the tuple (given in {@code tuple[offset .. offset + arity)}) if it isn't in the relation
+     * yet, and returns true if it was added.
+     */
+    boolean add (int[] tuple, int offset)
+    {
+        int mask = slots.length - 1;
+        int slot = hash(tuple, offset, arity) & mask;
+        while (slots[slot] != 0) {
+            if (equal(tuple, offset, (slots[slot] - 1) * arity))
+                return false;
+            slot = (slot + 1) & mask;
+        }
+
+        if ((count + 1) * arity > tuples.length)
+            tuples = Arrays.copyOf(tuples, tuples.length * 2);
+        System.arraycopy(tuple, offset, tuples, count * arity, arity);
+        slots[slot] = ++count;
+        if (count * 2 > slots.length)
+            rehash();
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private void rehash ()
+    {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int i = 0; i < count; i++) {
+            int slot = hash(tuples, i * arity, arity) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = i + 1;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    static int hash (int[] array, int offset, int length)
+    {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++)
+            hash = 31 * hash + array[i];
+        return mix(hash);
+    }
+
+    /**
+     * Spreads the bits of a hash code: atom ids are small and often consecutive, which would
+     * otherwise cluster in open addressing and power-of-two bucket tables.
+     */
+    static int mix (int hash)
+    {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    private boolean equal (int[] tuple, int offset, int start)
+    {
+        for (int i = 0; i < arity; i++)
+            if (tuples[start + i] != tuple[offset + i])
+                return false;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
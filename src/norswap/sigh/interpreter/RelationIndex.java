@@ -0,0 +1,85 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * Hash index over some columns of a {@link Relation}, used to join it on shared variables.
+ *
+ * <p>Tuples are chained per bucket, the most recent first: {@link #first} returns the id of the
+ * most recent tuple in the bucket of the given key (or -1), and {@link #next} the id of the tuple
+ * that precedes a tuple in its bucket (or -1). Tuples in a bucket may not match the key, and must
+ * be checked. The index catches up with the tuples added to the relation when {@link #update} is
+ * called.
+ */
+final class RelationIndex
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final Relation relation;
+    private final int[] columns;
+
+    // id of the most recent tuple in each bucket + 1, or 0 if the bucket is empty
+    private int[] heads = new int[16];
+    // id of the preceding tuple in the same bucket + 1, or 0 if there is none
+    private int[] chain = new int[16];
+    private int indexed = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    RelationIndex (Relation relation, int[] columns) {
+        this.relation = relation;
+        this.columns = columns;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Indexes the tuples added to the relation since the last call.
+     */
+    void update ()
+    {
+        int count = relation.count;
+        if (indexed == count)
+            return;
+        if (count > chain.length)
+            chain = Arrays.copyOf(chain, Math.max(count, chain.length * 2));
+        if (count > heads.length) {
+            heads = new int[Integer.highestOneBit(count) * 2];
+            indexed = 0;
+        }
+        int mask = heads.length - 1;
+        int[] tuples = relation.tuples;
+        int arity = relation.arity;
+        for (; indexed < count; indexed++) {
+            int hash = 1;
+            for (int column : columns)
+                hash = 31 * hash + tuples[indexed * arity + column];
+            int bucket = Relation.mix(hash) & mask;
+            chain[indexed] = heads[bucket];
+            heads[bucket] = indexed + 1;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the id of the most recent tuple in the bucket of the key (the values of the indexed
+     * columns, in order), or -1 if the bucket is empty.
+     */
+    int first (int[] key)
+    {
+        int hash = 1;
+        for (int value : key)
+            hash = 31 * hash + value;
+        return heads[Relation.mix(hash) & (heads.length - 1)] - 1;
+    }
+
+    /**
+     * Returns the id of the tuple that precedes the given tuple in its bucket, or -1.
+     */
+    int next (int tuple) {
+        return chain[tuple] - 1;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
@@ -2,6 +2,7 @@ package norswap.sigh.interpreter;
 import norswap.sigh.ast.QueryArgNode;
 import norswap.utils.Util;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -11,6 +12,10 @@ import java.util.List;
     @tails is a list of queryArgNode (have a name and a lsit of term)
     @logic_operands is the list of logic operands if present in the rule.
     @fact is true if the Rule is a Fact here. (the tails are always true)
+    @functor is the name and arity of the head, @tail_functors those of the tails
+    @atoms are the ids of the head terms (strings or numbers) in the {@link AtomTable}, for facts
+    (null for rules)
+    @clause is the rule compiled for the solver (null for facts)
  */
 public class Rule {
     public final String head;
@@ -19,6 +24,10 @@ public class Rule {
     public final List<String> logic_operands;
     public final Boolean fact;
     public final Integer arity;
+    public final Functor functor;
+    public final List<Functor> tail_functors;
+    public final int[] atoms;
+    final Clause clause;
 
 
     @SuppressWarnings("unchecked")
@@ -27,13 +36,26 @@ public class Rule {
         this.head = Util.cast(head, String.class);
         this.head_args = Util.cast(head_args, List.class);
         this.arity = this.head_args.size();
+        this.functor = Functor.of(this.head, this.arity);
         if(!fact) {
             this.tails = Util.cast(tails, List.class);
             this.logic_operands = (List<String>) logic_operands;
+            this.tail_functors = new ArrayList<>();
+            for (QueryArgNode tail : this.tails) {
+                this.tail_functors.add(Functor.of(tail.name, tail.arity));
+            }
+            this.atoms = null;
+            this.clause = Clause.compile(this);
         }
         else {
             this.tails = null;
             this.logic_operands = null;
+            this.tail_functors = null;
+            this.atoms = new int[this.arity];
+            for (int i = 0; i < this.arity; i++) {
+                this.atoms[i] = Clause.atom(this.head_args.get(i));
+            }
+            this.clause = null;
         }
     }
 
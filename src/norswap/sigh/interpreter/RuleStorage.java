@@ -1,34 +1,335 @@
 package norswap.sigh.interpreter;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * The clauses of the tear programs, by predicate (see {@link Predicate}).
+ *
+ * <p>A storage is not thread-safe. To query the same clauses from many threads at once, {@link
+ * #publish} a read-only copy of the storage and share it (along with a {@link QuerySolverPool}):
+ * the copy never changes, and its solvers keep all their state to themselves. Publishing does not
+ * copy the clauses: the storage and its copies share their predicates, and the storage copies a
+ * predicate the first time it modifies it after publishing it (copy-on-write).
+ */
 public class RuleStorage {
 
-    HashMap<String, List<Rule>> struct;
+    final HashMap<Functor, Predicate> struct;
+
+    // The answer tables (see Tabling). A read-only storage has a set of tables per thread, which
+    // remain valid since its clauses never change.
+    private final Tabling tabling;
+    private final ThreadLocal<Tabling> thread_tabling;
+
+    /** Whether the storage is a read-only copy (see {@link #publish}). */
+    private final boolean read_only;
+
+    /** Whether the facts derived from the rules have been materialized (see {@link #materialize}). */
+    private boolean materialized = false;
+
+    /** Whether the goals of conjunctions are reordered (see {@link GoalOrderer}). */
+    private boolean reorder = false;
+    private GoalOrderer orderer = null;
+
+    /** Cache of query answers, or null if disabled (see {@link #cacheQueries}). */
+    private QueryCache cache = null;
+    private int cache_capacity = 0;
+
+    // Changes to the facts and rules are stamped with the version, and queries only see the clauses
+    // that exist at the version at which they start (see Predicate). The version only needs to be
+    // incremented when a query has started since the last change (observed).
+    private int version = 0;
+    private boolean observed = false;
+
+    // Number of queries that have started and are not done yet (see QuerySolver#close).
+    final AtomicInteger running = new AtomicInteger();
 
-    @SuppressWarnings("unchecked")
     public RuleStorage(){
         struct = new HashMap<>();
+        tabling = new Tabling();
+        thread_tabling = null;
+        read_only = false;
+    }
+
+    // Creates a read-only copy of the storage.
+    private RuleStorage (RuleStorage storage) {
+        struct = new HashMap<>(storage.struct);
+        for (Predicate predicate : struct.values())
+            predicate.published = true;
+        tabling = null;
+        thread_tabling = ThreadLocal.withInitial(Tabling::new);
+        read_only = true;
+        materialized = storage.materialized;
+        reorder = storage.reorder;
+        version = storage.version;
+        // built now, as it is shared by all the threads that query the copy
+        orderer = reorder ? new GoalOrderer(this) : null;
+    }
+
+    /**
+     * Returns a read-only copy of the storage, which can be queried from many threads at once (see
+     * the class documentation). Changes made to this storage afterwards are not visible in the
+     * copy, and the copy cannot be modified.
+     */
+    public RuleStorage publish () {
+        return new RuleStorage(this);
+    }
+
+    /**
+     * Whether the storage is a read-only copy made by {@link #publish}.
+     */
+    public boolean readOnly () {
+        return read_only;
+    }
+
+    // Throws if the storage is read-only.
+    private void check_writable () {
+        if (read_only)
+            throw new UnsupportedOperationException("read-only storage (see RuleStorage#publish)");
     }
 
+    /**
+     * Returns the predicate, creating it if needed, in a state that can be modified: if it is
+     * shared with a read-only copy of the storage, it is replaced by a copy of its own.
+     */
+    Predicate writable (Functor functor)
+    {
+        check_writable();
+        Predicate predicate = struct.get(functor);
+        if (predicate == null || predicate.published) {
+            predicate = predicate == null ? new Predicate(functor) : predicate.copy();
+            struct.put(functor, predicate);
+        }
+        return predicate;
+    }
+
+    /**
+     * Adds a clause to the storage. Queries that are running do not see it.
+     */
     public Null addRule (Rule rule) {
-        if (this.contains(rule.head)) {
-            this.getRule(rule.head).add(rule);
-        } else {
-            List<Rule> LL = new LinkedList<>();
-            LL.add(rule);
-            struct.put(rule.head, LL);
+        if (rule.is_fact()) {
+            return addFact(rule.functor, rule.atoms);
         }
+        check_writable();
+        int version = stamp();
+        invalidate(version);
+        writable(rule.functor).addRule(rule, version);
+        return null;
+    }
+
+    /**
+     * Adds a ground fact, given as the {@link AtomTable} ids of its terms, to the columnar store
+     * of its predicate.
+     */
+    public Null addFact (Functor functor, int[] atoms) {
+        check_writable();
+        int version = stamp();
+        invalidate(version);
+        writable(functor).addFact(atoms, version);
         return null;
     }
 
-    public List<Rule> getRule(String head) {
-        return struct.get(head);
+    /**
+     * Adds a ground fact to the storage. Queries that are running do not see it. A term that is a
+     * number in its canonical form denotes that number, as in the facts of a tear block or a file
+     * (see {@link AtomTable#parse}).
+     */
+    public void assertFact (String name, String... terms) {
+        int[] atoms = new int[terms.length];
+        for (int i = 0; i < atoms.length; i++) {
+            atoms[i] = AtomTable.parse(terms[i]);
+        }
+        addFact(Functor.of(name, atoms.length), atoms);
+    }
+
+    /**
+     * Adds the facts of a delimited text file to the predicate of the given name: one fact per
+     * non-empty line, one term per field, all lines having the same number of fields (see {@link
+     * FactLoader}). Fields may be quoted unless the delimiter is a tab. A field that is not quoted
+     * and is a number in its canonical form is loaded as that number, other fields as strings. If
+     * {@code header} is set, the first line is skipped. Returns the number of facts loaded.
+     */
+    public int loadFacts (String name, Path file, char delimiter, boolean header) throws IOException {
+        check_writable();
+        int version = stamp();
+        invalidate(version);
+        return new FactLoader(this, name, file, delimiter, header).load(version);
+    }
+
+    /**
+     * Writes the declared facts of the storage, along with their indexes and the atom table, to a
+     * binary snapshot file (see {@link FactSnapshot}). Rules are not included. Returns the number
+     * of facts written.
+     */
+    public int writeSnapshot (Path file) throws IOException {
+        return FactSnapshot.write(this, file);
+    }
+
+    /**
+     * Adds the facts of a snapshot file written by {@link #writeSnapshot}, and returns their
+     * number. The file is mapped in memory and its columns and indexes are copied in bulk onto the
+     * heap, which is much faster than loading the facts one by one, but still linear in their
+     * number.
+     */
+    public int readSnapshot (Path file) throws IOException {
+        check_writable();
+        int version = stamp();
+        invalidate(version);
+        return FactSnapshot.read(this, file, version);
+    }
+
+    /**
+     * Removes the first declared fact equal to the given one (if any) from the storage, and returns
+     * true if there was one. Queries that are running still see it. Facts derived from the
+     * rules cannot be retracted. Terms are read as in {@link #assertFact}.
+     */
+    public boolean retractFact (String name, String... terms) {
+        check_writable();
+        Functor functor = Functor.of(name, terms.length);
+        if (!struct.containsKey(functor)) {
+            return false;
+        }
+        int[] atoms = new int[terms.length];
+        for (int i = 0; i < atoms.length; i++) {
+            atoms[i] = AtomTable.parse(terms[i]);
+        }
+        int version = stamp();
+        invalidate(version);
+        Predicate predicate = writable(functor);
+        boolean retracted = predicate.retract(atoms, version);
+        if (retracted && running.get() == 0) {
+            predicate.compact();
+        }
+        return retracted;
+    }
+
+    /**
+     * Turns on tabling for the predicate: its answers are memoized per call pattern, so that
+     * recursive queries terminate and repeated sub-goals become table lookups (see {@link Tabling}).
+     */
+    public Null table (Functor functor) {
+        check_writable();
+        invalidate(stamp());
+        Predicate predicate = writable(functor);
+        predicate.tabled = true;
+        ++predicate.revision;
+        return null;
+    }
+
+    /**
+     * Derives all the facts that follow from the rules bottom-up (see {@link BottomUpEvaluator})
+     * and adds them to their predicates, so that queries become lookups in the fact store. The
+     * derived facts are dropped as soon as a clause is added. Does nothing if the facts are
+     * already materialized. Returns the number of facts derived.
+     */
+    public int materialize ()
+    {
+        if (materialized)
+            return 0;
+        check_writable();
+        tabling.clear();
+        materialized = true;
+        return new BottomUpEvaluator(this).run(stamp());
+    }
+
+    /**
+     * Enables or disables the reordering of the goals of rule bodies and queries according to
+     * the statistics of the storage (see {@link GoalOrderer}). Solutions may then come in a
+     * different order. Disabled by default.
+     */
+    public void reorderGoals (boolean enabled) {
+        check_writable();
+        reorder = enabled;
+        orderer = null;
+        cacheQueries(cache_capacity);
+    }
+
+    /**
+     * Enables the caching of the answers of up to {@code capacity} distinct queries, the least
+     * recently used being evicted first (see {@link QueryCache}), or disables it if {@code
+     * capacity} is 0 (the default). An answer is reused until a predicate it depends on changes.
+     * The cache is cleared by this call.
+     */
+    public void cacheQueries (int capacity) {
+        cache_capacity = capacity;
+        cache = capacity > 0 ? new QueryCache(capacity) : null;
+    }
+
+    /**
+     * Returns the cache of query answers, or null if queries are not cached.
+     */
+    QueryCache queryCache () {
+        return cache;
+    }
+
+    /**
+     * Returns the goal orderer for the current clauses, or null if goals are not reordered.
+     */
+    GoalOrderer orderer ()
+    {
+        if (reorder && orderer == null)
+            orderer = new GoalOrderer(this);
+        return orderer;
+    }
+
+    /**
+     * Returns the version that queries starting now see.
+     */
+    int snapshot () {
+        if (!read_only)
+            observed = true;
+        return version;
+    }
+
+    /**
+     * Returns the answer tables to use in the current thread.
+     */
+    Tabling tabling () {
+        return read_only ? thread_tabling.get() : tabling;
+    }
+
+    // Returns the version with which to stamp a change.
+    private int stamp () {
+        if (observed) {
+            ++version;
+            observed = false;
+        }
+        return version;
+    }
+
+    // Discards everything derived from the clauses, before they change at the given version.
+    private void invalidate (int version)
+    {
+        tabling.clear();
+        orderer = null;
+        if (!materialized)
+            return;
+        // replacing the value of a key does not invalidate the iteration
+        for (Map.Entry<Functor, Predicate> entry : struct.entrySet())
+            if (entry.getValue().materialized())
+                writable(entry.getKey()).dematerialize(version);
+        materialized = false;
+    }
+
+    /**
+     * Returns the clauses stored for {@code functor}, or null if there are none.
+     */
+    public Predicate getPredicate(Functor functor) {
+        return struct.get(functor);
+    }
+
+    /**
+     * Returns the predicates that have clauses (or are tabled).
+     */
+    public Collection<Predicate> predicates() {
+        return struct.values();
     }
 
-    public boolean contains(String head) {
-        return struct.containsKey(head);
+    public boolean contains(Functor functor) {
+        return struct.containsKey(functor);
     }
 
     @Override
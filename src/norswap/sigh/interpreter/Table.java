@@ -0,0 +1,72 @@
+package norswap.sigh.interpreter;
+
+import java.util.Arrays;
+
+/**
+ * The answer table of a call to a tabled predicate (see {@link Tabling}).
+ *
+ * <p>Calls and answers are both encoded as one int per argument: the {@link AtomTable} id of an
+ * atom, or {@code -(k+1)} for the k-th distinct unbound variable (in order of first occurrence).
+ * Two calls share a table if their encodings are equal, i.e. if they are variants of one another,
+ * and if they are made at the same version of the storage.
+ *
+ * <p>Answers are kept in insertion order, without duplicates, in a {@link Relation}.
+ */
+final class Table
+{
+    // ---------------------------------------------------------------------------------------------
+
+    static final int NEW        = 0;
+    static final int EVALUATING = 1;
+    static final int INCOMPLETE = 2;
+    static final int COMPLETE   = 3;
+
+    // ---------------------------------------------------------------------------------------------
+
+    final Functor functor;
+    final int[] pattern;
+    /** The version of the storage whose clauses the answers are derived from. */
+    final int version;
+    private final int hash;
+
+    /** One of {@link #NEW}, {@link #EVALUATING}, {@link #INCOMPLETE} or {@link #COMPLETE}. */
+    int state = NEW;
+
+    /** Position of the table in the completion stack of {@link Tabling}. */
+    int dfn;
+
+    /** Lowest position in the completion stack of a table this one depends on. */
+    int low;
+
+    /** Value of {@link Tabling#answers} at the end of the last evaluation. */
+    long evaluated_at;
+
+    /** The answers, in insertion order. */
+    final Relation answers;
+
+    // ---------------------------------------------------------------------------------------------
+
+    Table (Functor functor, int[] pattern, int version) {
+        this.functor = functor;
+        this.pattern = pattern;
+        this.version = version;
+        this.hash = 31 * (31 * functor.hashCode() + Arrays.hashCode(pattern)) + version;
+        this.answers = new Relation(functor.arity);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Override public boolean equals (Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Table)) return false;
+        Table other = (Table) o;
+        return functor == other.functor && version == other.version
+            && Arrays.equals(pattern, other.pattern);
+    }
+
+    @Override public int hashCode () {
+        return hash;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
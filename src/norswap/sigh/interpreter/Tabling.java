@@ -0,0 +1,125 @@
+package norswap.sigh.interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Answer tables for the tabled predicates of a {@link RuleStorage} (see {@link
+ * RuleStorage#table}).
+ *
+ * <p>A call to a tabled predicate is not resolved against its clauses, but against the answer
+ * table of its call pattern (its variant). The first such call evaluates the table: it runs the
+ * clauses with a nested {@link QuerySolver}, recording every answer found in the table. A
+ * recursive call to a table being evaluated does not evaluate it again but consumes the answers
+ * found so far. The evaluation is repeated until no new answer is found anywhere, which is bound
+ * to happen since the number of answers is finite. This is known as linear tabling: recursive
+ * queries terminate, and repeated sub-goals become table lookups.
+ *
+ * <p>Tables that depend on one another (through tables being evaluated) are completed together,
+ * when the evaluation of the oldest one (the leader) reaches its fixpoint. Until then, they are
+ * incomplete and are evaluated again when called, unless no answer has been added to any table
+ * since their last evaluation.
+ *
+ * <p>The answers of a tabled predicate are returned in the order in which they were found, each
+ * answer only once. Tables are discarded whenever a clause is added to the storage. The
+ * evaluation of a table that calls another new table is nested on the Java stack.
+ *
+ * <p>A table holds the answers at one version of the storage: that of the query that evaluates
+ * it, which only sees the clauses that existed when it started (see {@link RuleStorage#snapshot}).
+ * A query that still runs after the clauses have changed thus evaluates tables of its own, instead
+ * of using the tables of the queries that started afterwards.
+ */
+final class Tabling
+{
+    // ---------------------------------------------------------------------------------------------
+
+    private final HashMap<Table, Table> tables = new HashMap<>();
+
+    /** Tables that have been evaluated but are not complete yet, in order of first evaluation. */
+    private final ArrayList<Table> stack = new ArrayList<>();
+
+    /** Number of answers added to the tables so far. */
+    long answers = 0;
+
+    /** Number of calls resolved against tables that were not complete so far. */
+    long incomplete_calls = 0;
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Returns the table for the given call pattern (see {@link Table}) at the given version of the
+     * storage, creating it if needed.
+     */
+    Table table (Functor functor, int[] pattern, int version)
+    {
+        Table table = new Table(functor, pattern, version);
+        Table existing = tables.putIfAbsent(table, table);
+        return existing != null ? existing : table;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Adds the answer to the table, returning true if it wasn't in it yet.
+     */
+    boolean add (Table table, int[] answer)
+    {
+        if (!table.answers.add(answer, 0))
+            return false;
+        ++answers;
+        return true;
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Evaluates the table (which must be new or incomplete) until no new answers are found.
+     * Afterwards, the table is either complete, or incomplete if it depends on a table that is
+     * still being evaluated. The evaluation is counted and limited as part of the search of
+     * {@code caller} (see {@link QuerySolver#profile} and {@link QuerySolver#limit}). If it is
+     * aborted, all tables are discarded, as those being evaluated are left inconsistent.
+     */
+    void evaluate (Table table, RuleStorage storage, QuerySolver caller)
+    {
+        if (table.state == Table.NEW) {
+            table.dfn = table.low = stack.size();
+            stack.add(table);
+        }
+        // An incomplete table keeps the dependencies (low) found in its previous evaluations.
+        table.state = Table.EVALUATING;
+
+        // If no incomplete table was called, a single pass suffices.
+        long before, calls;
+        try {
+            do {
+                before = answers;
+                calls = incomplete_calls;
+                new QuerySolver(storage, table, caller).fill();
+            } while (answers != before && incomplete_calls != calls);
+        } catch (RuntimeException e) {
+            clear();
+            throw e;
+        }
+
+        if (table.low == table.dfn) {
+            for (int i = table.dfn; i < stack.size(); i++)
+                stack.get(i).state = Table.COMPLETE;
+            stack.subList(table.dfn, stack.size()).clear();
+        } else {
+            table.state = Table.INCOMPLETE;
+            table.evaluated_at = answers;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Discards all tables.
+     */
+    void clear () {
+        tables.clear();
+        stack.clear();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+}
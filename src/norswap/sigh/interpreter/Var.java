@@ -0,0 +1,23 @@
+package norswap.sigh.interpreter;
+
+/**
+ * A logic variable of the {@link QuerySolver}, renamed apart for each clause it is used in.
+ * @name is the name of the variable in the source
+ * @ref is the term the variable is bound to (an atom or another Var), or null if it is unbound.
+ */
+final class Var {
+    final String name;
+    Object ref;
+
+    Var(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (ref == null) {
+            return "_" + name;
+        }
+        return ref instanceof Integer ? AtomTable.name((Integer) ref) : ref.toString();
+    }
+}
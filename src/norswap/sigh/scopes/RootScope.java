@@ -37,6 +37,9 @@ public final class RootScope extends Scope
 
     // root scope functions
     public final SyntheticDeclarationNode print = decl("print", FUNCTION);
+    public final SyntheticDeclarationNode _assert  = decl("assert",  FUNCTION);
+    public final SyntheticDeclarationNode retract  = decl("retract", FUNCTION);
+    public final SyntheticDeclarationNode load     = decl("load",    FUNCTION);
     //public final SyntheticDeclarationNode query = decl("query", FUNCTION);
 
     // ---------------------------------------------------------------------------------------------
@@ -63,6 +66,14 @@ public final class RootScope extends Scope
         reactor.set(_null,  "type",       NullType.INSTANCE);
 
         reactor.set(print,  "type", new FunType(StringType.INSTANCE, StringType.INSTANCE));
+
+        // assert(predicate, terms) adds a fact, retract(predicate, terms) removes it
+        Type terms = new ArrayType(StringType.INSTANCE);
+        reactor.set(_assert, "type", new FunType(BoolType.INSTANCE, StringType.INSTANCE, terms));
+        reactor.set(retract, "type", new FunType(BoolType.INSTANCE, StringType.INSTANCE, terms));
+
+        // load(predicate, path) adds the facts of a CSV (or .tsv) file, returns their number
+        reactor.set(load, "type", new FunType(IntType.INSTANCE, StringType.INSTANCE, StringType.INSTANCE));
         //reactor.set(query, "type", new FunType(StringType.INSTANCE, BoolType.INSTANCE)); // TODO : Modif when query more than a fact or if we make multiple argument in query
     }
 
@@ -14,6 +14,8 @@ import org.testng.annotations.Test;
 
 import static norswap.utils.Util.cast;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class BytecodeTests
@@ -267,4 +269,75 @@ public class BytecodeTests
         check(makePair + "x.x = 3; print(\"\" + x.x)", "3");
         check(makePair + "x.y = 3; print(\"\" + x.y)", "3.0");
     }
-}
\ No newline at end of file
+
+    // ---------------------------------------------------------------------------------------------
+
+    private final String family =
+            "tear {" +
+                    "parent(\"a\", \"b\"). parent(\"b\", \"c\"). parent(\"c\", \"d\")." +
+                    "ancestor(X, Y) := parent(X, Y)." +
+                    "ancestor(X, Y) := parent(X, Z) ancestor(Z, Y)." +
+                    "}";
+
+    @Test public void testTear() {
+        check(family + "var b: Bool = query(parent(\"a\", \"b\")); print(\"\" + b)", "true");
+        check(family + "var b: Bool = query(parent(\"a\", \"c\")); print(\"\" + b)", "false");
+        check(family + "var Y: String[] = [] ; var b: Bool = query(ancestor(\"a\", Y))" +
+                "print(\"\" + b + Y)", "true[b, c, d]");
+        check(family + "var Y: String[] = [] ; var b: Bool = query(ancestor(\"a\", Y), 2)" +
+                "print(\"\" + Y)", "[b, c]");
+        check(family + "var X: String[] = [] ; var b: Bool = query(parent(X, \"a\"))" +
+                "print(\"\" + b + X)", "false[]");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTearInFunctions() {
+        check(family + "fun f () { var Y: String[] = [] ; var b: Bool = query(ancestor(\"a\", Y))" +
+                "print(\"\" + Y) } f()", "[b, c, d]");
+        check(family + "fun f (Y: String[]) { var b: Bool = query(ancestor(\"b\", Y))" +
+                "print(\"\" + Y) } f([\"x\"])", "[c, d]");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    /**
+     * Checks that the compiler rejects the input program, with a message containing {@code what}.
+     */
+    private void checkUnsupported (String input, String what) {
+        UnsupportedOperationException e =
+            expectThrows(UnsupportedOperationException.class, () -> check(input, null));
+        assertTrue(e.getMessage().contains(what), e.getMessage());
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTearUnsupported() {
+        String query = "var b: Bool = query(ancestor(\"a\", \"d\"))";
+
+        // the interpreter's rule storage
+        checkUnsupported(family + "var b: Bool = assert(\"parent\", [\"d\", \"e\"])", "assert");
+        checkUnsupported(family + "var b: Bool = retract(\"parent\", [\"a\", \"b\"])", "retract");
+        checkUnsupported(family + "var n: Int = load(\"parent\", \"parents.csv\")", "load");
+
+        // left recursion would overflow the stack without tabling
+        checkUnsupported("tear {" +
+                "table path/2. " +
+                "edge(\"a\", \"b\"). " +
+                "path(X, Y) := edge(X, Y). " +
+                "path(X, Y) := path(X, Z) AND edge(Z, Y). " +
+                "}" + "var b: Bool = query(path(\"a\", \"b\"))", "tabling");
+
+        checkUnsupported(family + "tear { age(\"ann\", 25). }" + query, "numbers");
+        checkUnsupported(family + "var b: Bool = query(parent(\"a\", 1))", "numbers");
+        checkUnsupported(family + "tear { first(X) := parent(X, Y) AND !. }" + query, "cut");
+        checkUnsupported(family + "tear { root(X) := parent(X, Y) AND NOT parent(Z, X). }" + query,
+                "negation");
+        checkUnsupported(family + "tear { near(X, Y) := parent(X, Y) OR parent(Y, X). }" + query,
+                "disjunctions");
+
+        // closures are not supported
+        checkUnsupported(family + "var Y: String[] = []" +
+                "fun f () { var b: Bool = query(ancestor(\"a\", Y)) } f()", "(Y)");
+    }
+}
@@ -160,7 +160,7 @@ public class GrammarTests extends AutumnTestFixture {
         failure("man(\"Carl\")"); // Point is missing
         failure("man(Carl).");    // Quotes are missing
         failure("man(Carl)");     // Both are missing
-        failure("man(1000).");    // Integer not accepted
+        failure("man(1000.).");   // Malformed number
     }
 
     @Test
@@ -197,6 +197,114 @@ public class GrammarTests extends AutumnTestFixture {
 
     }
 
+    @Test
+    public void testTearControl () {
+        /*
+        The tails of a rule can also be a cut (!), a negation (NOT goal or \+ goal) or once(goal).
+        */
+        rule = grammar.rule_declaration;
+
+        successExpect("first(X) := item(X) AND !. ",
+                new RuleDeclarationNode(
+                        null,
+                        "first",
+                        asList("X"),
+                        asList(
+                                new QueryArgNode(null, "item", asList("X")),
+                                "AND",
+                                new QueryArgNode(null, "!", asList(), QueryArgNode.CUT)
+                        )
+                ));
+
+        successExpect("single(X) := person(X) AND NOT married(X, Y) AND \\+ engaged(X). ",
+                new RuleDeclarationNode(
+                        null,
+                        "single",
+                        asList("X"),
+                        asList(
+                                new QueryArgNode(null, "person", asList("X")),
+                                "AND",
+                                new QueryArgNode(null, "married", asList("X", "Y"), QueryArgNode.NOT),
+                                "AND",
+                                new QueryArgNode(null, "engaged", asList("X"), QueryArgNode.NOT)
+                        )
+                ));
+
+        successExpect("parent(X) := once(child(Y, X)). ",
+                new RuleDeclarationNode(
+                        null,
+                        "parent",
+                        asList("X"),
+                        asList(new QueryArgNode(null, "child", asList("Y", "X"), QueryArgNode.ONCE))
+                ));
+
+        failure("single(X) := NOT !.");      // Only goals can be negated
+        failure("parent(X) := once(!).");   // Only goals can be in once
+    }
+
+    @Test
+    public void testTearArithmetic () {
+        /*
+        Terms can be numbers, and the tails of a rule can be constraints over numbers and variables.
+        */
+        rule = grammar.tear_statement;
+
+        successExpect("age(\"bob\", 42, 1.5).", new FactDeclarationNode(null,
+                "age", asList(new StringLiteralNode(null, "bob"), intlit(42), floatlit(1.5))));
+
+        rule = grammar.rule_declaration;
+
+        successExpect("old(X) := age(X, A) AND A > 30. ",
+                new RuleDeclarationNode(
+                        null,
+                        "old",
+                        asList("X"),
+                        asList(
+                                new QueryArgNode(null, "age", asList("X", "A")),
+                                "AND",
+                                new QueryArgNode(null,
+                                        new ArithmeticNode(null, "A", ">", intlit(30)))
+                        )
+                ));
+
+        successExpect("next(X, B) := age(X, A) AND B = (A + 1) * 2. ",
+                new RuleDeclarationNode(
+                        null,
+                        "next",
+                        asList("X", "B"),
+                        asList(
+                                new QueryArgNode(null, "age", asList("X", "A")),
+                                "AND",
+                                new QueryArgNode(null, new ArithmeticNode(null, "B", "=",
+                                        new ArithmeticNode(null,
+                                                new ArithmeticNode(null, "A", "+", intlit(1)),
+                                                "*", intlit(2))))
+                        )
+                ));
+
+        failure("old(X) := A > .");        // Missing operand
+        failure("old(X) := A + 1.");       // Not a constraint
+    }
+
+    @Test
+    public void testTearTable () {
+        /*
+        A table declaration must follow the syntax : table name / arity .
+        */
+        rule = grammar.table_declaration;
+
+        successExpect("table path/2.",
+                new TableDeclarationNode(null, "path", new IntLiteralNode(null, 2)));
+
+        failure("table path.");     // Arity missing
+        failure("table path/2");    // Point missing
+        failure("tablepath/2.");    // Space missing
+
+        rule = grammar.tear_statement;
+        successExpect("tabled(\"yes\").", new FactDeclarationNode(null,
+                "tabled", asList(new StringLiteralNode(null, "yes"))));
+    }
+
     @Test
     public void testTearQuery() {
         /*
@@ -222,6 +330,13 @@ public class GrammarTests extends AutumnTestFixture {
                         asList(new QueryArgNode(null, "father", asList("X", new StringLiteralNode(null, "Harry")))
                         )));
 
+        successExpect("query(father(X, Y), 10)",
+                new QueryNode(null,
+                        asList(new QueryArgNode(null, "father", asList("X", "Y"))),
+                        new IntLiteralNode(null, 10)
+                ));
+
         failure("query(father(X, Y)");  // Missing parenthesis
+        failure("query(father(X, Y), Z)");  // Limit must be an integer
     }
 }
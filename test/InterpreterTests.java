@@ -5,9 +5,23 @@ import norswap.autumn.ParseResult;
 import norswap.autumn.positions.LineMapString;
 import norswap.sigh.SemanticAnalysis;
 import norswap.sigh.SighGrammar;
+import norswap.sigh.ast.QueryArgNode;
+import norswap.sigh.ast.QueryNode;
 import norswap.sigh.ast.SighNode;
+import norswap.sigh.ast.StringLiteralNode;
+import norswap.sigh.interpreter.AtomTable;
+import norswap.sigh.interpreter.BoundedPair;
+import norswap.sigh.interpreter.CancellationToken;
+import norswap.sigh.interpreter.Functor;
 import norswap.sigh.interpreter.Interpreter;
 import norswap.sigh.interpreter.Null;
+import norswap.sigh.interpreter.QueryLimitException;
+import norswap.sigh.interpreter.QueryLimits;
+import norswap.sigh.interpreter.QueryProfile;
+import norswap.sigh.interpreter.QuerySolver;
+import norswap.sigh.interpreter.QuerySolverPool;
+import norswap.sigh.interpreter.Rule;
+import norswap.sigh.interpreter.RuleStorage;
 import norswap.uranium.Reactor;
 import norswap.uranium.SemanticError;
 import norswap.utils.IO;
@@ -15,11 +29,26 @@ import norswap.utils.TestFixture;
 import norswap.utils.data.wrappers.Pair;
 import norswap.utils.visitors.Walker;
 import org.testng.annotations.Test;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertThrows;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.expectThrows;
 
 public final class InterpreterTests extends TestFixture {
 
@@ -38,6 +67,13 @@ public final class InterpreterTests extends TestFixture {
     // ---------------------------------------------------------------------------------------------
 
     private Grammar.rule rule;
+    private boolean bottomUp = false;
+    private ForkJoinPool pool = null;
+    private boolean reorderGoals = false;
+    private int queryCache = 0;
+    private boolean profiling = false;
+    private QueryProfile profile = null;
+    private QueryLimits limits = null;
 
     // ---------------------------------------------------------------------------------------------
 
@@ -67,6 +103,12 @@ public final class InterpreterTests extends TestFixture {
         Reactor reactor = new Reactor();
         Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
         Interpreter interpreter = new Interpreter(reactor);
+        interpreter.setBottomUp(bottomUp);
+        interpreter.setParallel(pool);
+        interpreter.setReorderGoals(reorderGoals);
+        interpreter.setQueryCache(queryCache);
+        interpreter.setProfiling(profiling);
+        interpreter.setQueryLimits(limits);
         walker.walk(root);
         reactor.run();
         Set<SemanticError> errors = reactor.errors();
@@ -82,6 +124,7 @@ public final class InterpreterTests extends TestFixture {
         }
 
         Pair<String, Object> result = IO.captureStdout(() -> interpreter.interpret(root));
+        profile = interpreter.lastProfile();
         assertEquals(result.b, expectedReturn);
         if (expectedOutput != null) assertEquals(result.a, expectedOutput);
     }
@@ -386,6 +429,8 @@ public final class InterpreterTests extends TestFixture {
                 , false);
     }
 
+    // ---------------------------------------------------------------------------------------------
+
     @Test public void testQueryReturn()
     {
         rule = grammar.root;
@@ -433,4 +478,866 @@ public final class InterpreterTests extends TestFixture {
                 , new Object[]{"Paul", "Jean"});
 
     }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testIndexedQuery()
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    man(\"Thomas\").\n" +
+                "    man(\"Paul\").\n" +
+                "    not_girl(\"Edward\").\n" +
+                "    man(Z) := not_girl(Z).\n" +
+                "    man(\"Jean\").\n" +
+                "    likes(\"Paul\", \"Jean\").\n" +
+                "    likes(\"Jean\", \"Paul\").\n" +
+                "    likes(\"Paul\", \"Thomas\").\n" +
+                "    likes(\"Paul\", \"Jean\", \"a lot\").\n" +
+                "}";
+
+        check(tearDeclaration + "var test: Bool = query(man(\"Edward\")); return test;", true);
+        check(tearDeclaration + "var test: Bool = query(man(\"Jean\")); return test;", true);
+        check(tearDeclaration + "var test: Bool = query(man(\"Carl\")); return test;", false);
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(likes(\"Paul\", X))" +
+                        "return X;"
+                , new Object[]{"Jean", "Thomas"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(likes(X, \"Paul\"))" +
+                        "return X;"
+                , new Object[]{"Jean"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(likes(\"Paul\", X, \"a lot\"))" +
+                        "return X;"
+                , new Object[]{"Jean"});
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testRecursiveQuery()
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    parent(\"Ann\", \"Bob\").\n" +
+                "    parent(\"Bob\", \"Carl\").\n" +
+                "    parent(\"Carl\", \"Dan\").\n" +
+                "    man(\"Bob\").\n" +
+                "    man(\"Dan\").\n" +
+                "    ancestor(X, Y) := parent(X, Y).\n" +
+                "    ancestor(X, Y) := parent(X, Z) AND ancestor(Z, Y).\n" +
+                "}";
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(ancestor(\"Ann\", X))" +
+                        "return X;"
+                , new Object[]{"Bob", "Carl", "Dan"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(ancestor(X, \"Dan\"))" +
+                        "return X;"
+                , new Object[]{"Carl", "Ann", "Bob"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(ancestor(\"Ann\", X), man(X))" +
+                        "return X;"
+                , new Object[]{"Bob", "Dan"});
+
+        check(tearDeclaration + "var test: Bool = query(ancestor(\"Dan\", \"Ann\")); return test;", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testTabling()
+    {
+        rule = grammar.root;
+
+        // left-recursive over a cycle: does not terminate without tabling
+        String tearDeclaration = "tear {\n" +
+                "    table path/2.\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    edge(\"c\", \"a\").\n" +
+                "    edge(\"c\", \"d\").\n" +
+                "    path(X, Y) := path(X, Z) AND edge(Z, Y).\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "}";
+
+        check(tearDeclaration + "var Y: String[] = []\n" +
+                        "var test: Bool = query(path(\"a\", Y))" +
+                        "return Y;"
+                , new Object[]{"b", "c", "a", "d"});
+
+        check(tearDeclaration + "var test: Bool = query(path(\"d\", \"a\")); return test;", false);
+        check(tearDeclaration + "var test: Bool = query(path(\"b\", \"b\")); return test;", true);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testBottomUp()
+    {
+        rule = grammar.root;
+        bottomUp = true;
+
+        // left-recursive over a cycle: evaluated bottom-up, without tabling
+        String tearDeclaration = "tear {\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    edge(\"c\", \"a\").\n" +
+                "    edge(\"c\", \"d\").\n" +
+                "    path(X, Y) := path(X, Z) AND edge(Z, Y).\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "}";
+
+        try {
+            check(tearDeclaration + "var Y: String[] = []\n" +
+                            "var test: Bool = query(path(\"a\", Y))" +
+                            "return Y;"
+                    , new Object[]{"b", "c", "d", "a"});
+
+            check(tearDeclaration + "var test: Bool = query(path(\"d\", \"a\")); return test;", false);
+            check(tearDeclaration + "var test: Bool = query(path(\"b\", \"b\")); return test;", true);
+        } finally {
+            bottomUp = false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testParallel()
+    {
+        rule = grammar.root;
+        pool = new ForkJoinPool(4);
+
+        String tearDeclaration = "tear {\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    edge(\"c\", \"d\").\n" +
+                "    edge(\"c\", \"e\").\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "    path(X, Y) := edge(X, Z) AND path(Z, Y).\n" +
+                "}";
+
+        try {
+            // same solutions, in the same order, as the sequential search
+            check(tearDeclaration + "var X: String[] = []\n" +
+                            "var Y: String[] = []\n" +
+                            "var test: Bool = query(path(X, Y))" +
+                            "return Y;"
+                    , new Object[]{"b", "c", "d", "e", "c", "d", "e", "d", "e"});
+
+            check(tearDeclaration + "var Y: String[] = []\n" +
+                            "var test: Bool = query(path(\"a\", Y), 3)" +
+                            "return Y;"
+                    , new Object[]{"b", "c", "d"});
+
+            check(tearDeclaration + "var test: Bool = query(path(\"d\", \"a\")); return test;", false);
+
+            // cuts reached through the rules of the first goal prune as in the sequential search
+            check("tear {\n" +
+                            "    item(\"a\").\n" +
+                            "    item(\"b\").\n" +
+                            "    item(\"c\").\n" +
+                            "    first(X) := item(X) AND !.\n" +
+                            "    first(X) := item(X).\n" +
+                            "    top(X) := first(X).\n" +
+                            "    top(X) := item(X).\n" +
+                            "}" +
+                            "var X: String[] = []\n" +
+                            "var test: Bool = query(top(X))" +
+                            "return X;"
+                    , new Object[]{"a", "a", "b", "c"});
+
+            // the branch of the second rule never ends, but its solutions are not needed
+            check("tear {\n" +
+                            "    item(\"a\").\n" +
+                            "    next(\"a\", \"b\").\n" +
+                            "    next(\"b\", \"a\").\n" +
+                            "    spin(X) := next(X, Y) AND spin(Y).\n" +
+                            "    p(X) := item(X).\n" +
+                            "    p(X) := spin(X).\n" +
+                            "}" +
+                            "var X: String[] = []\n" +
+                            "var test: Bool = query(p(X), 1)" +
+                            "return X;"
+                    , new Object[]{"a"});
+        } finally {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testReorderGoals()
+    {
+        rule = grammar.root;
+        reorderGoals = true;
+
+        String tearDeclaration = "tear {\n" +
+                "    child(\"Harry\", \"Paul\").\n" +
+                "    child(\"Louis\", \"Pierre\").\n" +
+                "    child(\"Lambert\", \"Vincent\").\n" +
+                "    child(\"Louise\", \"Marie\").\n" +
+                "    man(\"Pierre\").\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    edge(\"c\", \"a\").\n" +
+                "    father(P, C) := child(C, P) AND man(P).\n" +
+                "    orphan(C) := child(C, P) AND nobody(P).\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                // the recursive goal stays after edge, or the search would not terminate
+                "    path(X, Y) := edge(X, Z) AND path(Z, Y).\n" +
+                "}";
+
+        try {
+            check(tearDeclaration + "var C: String[] = []\n" +
+                            "var test: Bool = query(father(\"Pierre\", C))" +
+                            "return C;"
+                    , new Object[]{"Louis"});
+
+            check(tearDeclaration + "var test: Bool = query(orphan(\"Harry\")); return test;", false);
+
+            check(tearDeclaration + "var Y: String[] = []\n" +
+                            "var test: Bool = query(path(\"a\", Y), 4)" +
+                            "return Y;"
+                    , new Object[]{"b", "c", "a", "b"});
+
+            // Goals on predicates whose rules hold a constraint or a negation are not moved
+            // before the goals that bind their arguments, although their facts are more costly.
+            StringBuilder controlled = new StringBuilder("tear {\n");
+            for (int i = 0; i < 12; i++)
+                controlled.append("    num(").append(i * 5).append(").\n")
+                    .append("    p(\"x").append(i).append("\").\n");
+            controlled.append("    bad(\"x3\").\n" +
+                "    big(N) := N > 40.\n" +
+                "    large(N) := num(N) AND big(N).\n" +
+                "    r(X) := NOT bad(X).\n" +
+                "    good(X) := p(X) AND r(X).\n" +
+                "}");
+
+            check(controlled + "var N: String[] = []\n" +
+                            "var test: Bool = query(large(N))" +
+                            "return N;"
+                    , new Object[]{"45", "50", "55"});
+
+            check(controlled + "var X: String[] = []\n" +
+                            "var test: Bool = query(good(X))" +
+                            "return X;"
+                    , new Object[]{"x0", "x1", "x2", "x4", "x5", "x6", "x7", "x8", "x9", "x10",
+                        "x11"});
+        } finally {
+            reorderGoals = false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testQueryCache()
+    {
+        rule = grammar.root;
+        queryCache = 16;
+
+        String tearDeclaration = "tear {\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "    path(X, Y) := edge(X, Z) AND path(Z, Y).\n" +
+                "}";
+
+        try {
+            // the same query with another variable name reuses the answer
+            check(tearDeclaration + "var Y: String[] = []\n" +
+                            "var Z: String[] = []\n" +
+                            "var first: Bool = query(path(\"a\", Y))\n" +
+                            "var second: Bool = query(path(\"a\", Z))" +
+                            "return Z;"
+                    , new Object[]{"b", "c"});
+
+            // the answer is dropped when a predicate it depends on changes
+            check(tearDeclaration + "var Y: String[] = []\n" +
+                            "var first: Bool = query(path(\"a\", Y))\n" +
+                            "var removed: Bool = retract(\"edge\", [\"b\", \"c\"])\n" +
+                            "var second: Bool = query(path(\"a\", Y))" +
+                            "return Y;"
+                    , new Object[]{"b"});
+
+            check(tearDeclaration + "var first: Bool = query(path(\"a\", \"d\"))\n" +
+                            "var added: Bool = assert(\"edge\", [\"c\", \"d\"])\n" +
+                            "var second: Bool = query(path(\"a\", \"d\")); return second;"
+                    , true);
+        } finally {
+            queryCache = 0;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testProfiling()
+    {
+        rule = grammar.root;
+        profiling = true;
+
+        String tearDeclaration = "tear {\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    edge(\"c\", \"d\").\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "    path(X, Y) := edge(X, Z) AND path(Z, Y).\n" +
+                "}";
+
+        try {
+            check(tearDeclaration + "var Y: String[] = []\n" +
+                            "var test: Bool = query(path(\"a\", Y))" +
+                            "return Y;"
+                    , new Object[]{"b", "c", "d"});
+
+            assertEquals(profile.solutions(), 3L);
+            QueryProfile.Counters path = profile.get(Functor.of("path", 2));
+            QueryProfile.Counters edge = profile.get(Functor.of("edge", 2));
+            assertEquals(path.calls(), 4L);  // from a, b, c and d
+            assertEquals(path.tries(), 8L);  // both clauses, each time
+            assertEquals(path.retries(), 4L);  // for the second clause
+            assertEquals(edge.calls(), 8L);
+            assertEquals(edge.unifications(), 6L);
+            assertEquals(edge.failures(), 2L);  // no edge from d
+            assertTrue(profile.explain().startsWith("3 solutions in "));
+            assertTrue(profile.explain().contains("path/2"));
+        } finally {
+            profiling = false;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testQueryLimits()
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    next(\"a\", \"b\").\n" +
+                "    next(\"b\", \"a\").\n" +
+                "    spin(X) := next(X, Y) AND spin(Y).\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "    path(X, Y) := edge(X, Z) AND path(Z, Y).\n" +
+                "}";
+        // never ends, binding a new variable at each step
+        String spin = tearDeclaration + "var test: Bool = query(spin(\"a\")) return test;";
+
+        try {
+            limits = new QueryLimits().steps(10_000);
+            checkThrows(spin, QueryLimitException.class);
+
+            limits = new QueryLimits().time(10, TimeUnit.MILLISECONDS);
+            checkThrows(spin, QueryLimitException.class);
+
+            limits = new QueryLimits().bindings(100);
+            checkThrows(spin, QueryLimitException.class);
+
+            CancellationToken token = new CancellationToken();
+            token.cancel();
+            limits = new QueryLimits().token(token);
+            checkThrows(spin, QueryLimitException.class);
+
+            limits = new QueryLimits().solutions(1).steps(10_000);
+            check(tearDeclaration + "var Y: String[] = []\n" +
+                            "var test: Bool = query(path(\"a\", Y))" +
+                            "return Y;"
+                    , new Object[]{"b"});
+        } finally {
+            limits = null;
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testQueryLimitsCache()
+    {
+        // The facts are only declared by the first run, so that the second run can reuse the
+        // cached answers of the first.
+        String program = "var X: String[] = []\n" +
+                "var known: Bool = query(edge(\"a\", \"b\"))\n" +
+                "if (!known) {\n" +
+                "    tear {\n" +
+                "        edge(\"a\", \"b\").\n" +
+                "        edge(\"a\", \"c\").\n" +
+                "        edge(\"a\", \"d\").\n" +
+                "    }\n" +
+                "}\n" +
+                "var test: Bool = query(edge(\"a\", X))\n" +
+                "return X;";
+
+        autumnFixture.rule = grammar.root;
+        SighNode root = autumnFixture.success(program).topValue();
+        Reactor reactor = new Reactor();
+        Walker<SighNode> walker = SemanticAnalysis.createWalker(reactor);
+        Interpreter interpreter = new Interpreter(reactor);
+        interpreter.setQueryCache(16);
+        walker.walk(root);
+        reactor.run();
+        assertTrue(reactor.errors().isEmpty());
+
+        // an answer cut short by the limits isn't reused once they are lifted
+        interpreter.setQueryLimits(new QueryLimits().solutions(1));
+        assertEquals(interpreter.interpret(root), new Object[]{"b"});
+        interpreter.setQueryLimits(null);
+        assertEquals(interpreter.interpret(root), new Object[]{"b", "c", "d"});
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testAssertRetract()
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    edge(\"a\", \"b\").\n" +
+                "    edge(\"b\", \"c\").\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "    path(X, Y) := edge(X, Z) AND path(Z, Y).\n" +
+                "}";
+
+        check(tearDeclaration + "var added: Bool = assert(\"edge\", [\"c\", \"d\"])\n" +
+                        "var Y: String[] = []\n" +
+                        "var test: Bool = query(path(\"a\", Y))" +
+                        "return Y;"
+                , new Object[]{"b", "c", "d"});
+
+        check(tearDeclaration + "var removed: Bool = retract(\"edge\", [\"b\", \"c\"])\n" +
+                        "var test: Bool = query(path(\"a\", \"c\")); return test;"
+                , false);
+
+        check(tearDeclaration + "return retract(\"edge\", [\"a\", \"b\"])", true);
+        check(tearDeclaration + "return retract(\"edge\", [\"a\", \"c\"])", false);
+
+        // terms that are numbers denote numbers, as in the tear block
+        String ages = "tear {\n" +
+                "    age(\"ann\", 25).\n" +
+                "    old(X) := age(X, A) AND A > 30.\n" +
+                "}";
+
+        check(ages + "var added: Bool = assert(\"age\", [\"bob\", \"42\"])\n" +
+                        "var X: String[] = []\n" +
+                        "var test: Bool = query(old(X))" +
+                        "return X;"
+                , new Object[]{"bob"});
+
+        check(ages + "var added: Bool = assert(\"age\", [\"bob\", \"42\"])\n" +
+                        "return retract(\"age\", [\"bob\", \"42\"])"
+                , true);
+
+        check(ages + "return retract(\"age\", [\"ann\", \"25\"])", true);
+        check(ages + "return retract(\"age\", [\"ann\", \"25.0\"])", false);
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testLoadFacts() throws IOException
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    path(X, Y) := edge(X, Y).\n" +
+                "    path(X, Y) := edge(X, Z) AND path(Z, Y).\n" +
+                "}";
+
+        Path file = Files.createTempFile("edges", ".csv");
+        try {
+            Files.write(file, "a,b\r\nb,\"c, d\"\n\n\"c, d\",e\n".getBytes(StandardCharsets.UTF_8));
+            String path = file.toString().replace('\\', '/');
+
+            check(tearDeclaration + "var loaded: Int = load(\"edge\", \"" + path + "\")\n" +
+                            "var Y: String[] = []\n" +
+                            "var test: Bool = query(path(\"a\", Y))" +
+                            "return Y;"
+                    , new Object[]{"b", "c, d", "e"});
+
+            check(tearDeclaration + "return load(\"edge\", \"" + path + "\")", 3L);
+        } finally {
+            Files.delete(file);
+        }
+
+        // unquoted numbers are loaded as numbers, quoted ones as strings
+        String ages = "tear {\n" +
+                "    age(\"dan\", 31).\n" +
+                "}";
+
+        file = Files.createTempFile("ages", ".csv");
+        try {
+            Files.write(file, "ann,25\nbob,42\ncid,\"42\"\n".getBytes(StandardCharsets.UTF_8));
+            String path = file.toString().replace('\\', '/');
+
+            check(ages + "var loaded: Int = load(\"age\", \"" + path + "\")\n" +
+                            "var X: String[] = []\n" +
+                            "var test: Bool = query(age(X, 42))" +
+                            "return X;"
+                    , new Object[]{"bob"});
+
+            check(ages + "var loaded: Int = load(\"age\", \"" + path + "\")\n" +
+                            "var X: String[] = []\n" +
+                            "var test: Bool = query(age(X, \"42\"))" +
+                            "return X;"
+                    , new Object[]{"cid"});
+
+            check(ages + "var loaded: Int = load(\"age\", \"" + path + "\")\n" +
+                            "return retract(\"age\", [\"bob\", \"42\"])"
+                    , true);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testSnapshot() throws IOException
+    {
+        RuleStorage storage = new RuleStorage();
+        storage.assertFact("edge", "a", "b");
+        storage.assertFact("edge", "b", "c");
+        storage.assertFact("edge", "c", "d");
+        storage.retractFact("edge", "b", "c");
+        storage.assertFact("node", "a");
+
+        Path file = Files.createTempFile("facts", ".snapshot");
+        try {
+            assertEquals(storage.writeSnapshot(file), 3);
+            RuleStorage copy = new RuleStorage();
+            assertEquals(copy.readSnapshot(file), 3);
+            assertEquals(copy.getPredicate(Functor.of("edge", 2)).toString(), "[edge(a, b), edge(c, d)]");
+            assertEquals(copy.getPredicate(Functor.of("node", 1)).toString(), "[node(a)]");
+            assertEquals(copy.getPredicate(Functor.of("edge", 2)).candidates(
+                new Object[]{ AtomTable.atom("c"), null }).size(), 1);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testPublish() throws Exception
+    {
+        RuleStorage storage = new RuleStorage();
+        storage.assertFact("edge", "a", "b");
+        storage.assertFact("edge", "b", "c");
+        storage.assertFact("edge", "c", "d");
+        RuleStorage view = storage.publish();
+
+        // the view keeps the facts it was published with
+        storage.assertFact("edge", "d", "e");
+        storage.retractFact("edge", "a", "b");
+        assertEquals(view.getPredicate(Functor.of("edge", 2)).toString(),
+            "[edge(a, b), edge(b, c), edge(c, d)]");
+        assertEquals(storage.getPredicate(Functor.of("edge", 2)).toString(),
+            "[edge(b, c), edge(c, d), edge(d, e)]");
+        assertTrue(view.readOnly());
+        assertThrows(UnsupportedOperationException.class, () -> view.assertFact("edge", "x", "y"));
+
+        // queried from many threads at once, with pooled solvers
+        QuerySolverPool solvers = new QuerySolverPool(view);
+        QueryNode query = new QueryNode(null, Arrays.asList(new QueryArgNode(null, "edge",
+            new ArrayList<>(Arrays.asList(new StringLiteralNode(null, "b"), "Y")))));
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> answers = new ArrayList<>();
+            for (int i = 0; i < 16; i++)
+                answers.add(threads.submit(() -> solvers.solve(query, Long.MAX_VALUE).toString()));
+            for (Future<String> answer : answers)
+                assertEquals(answer.get(), "(true, [[(Y, c)]])");
+        } finally {
+            threads.shutdown();
+        }
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testRunningQuery()
+    {
+        RuleStorage storage = new RuleStorage();
+        storage.assertFact("edge", "a", "b");
+        storage.assertFact("edge", "a", "c");
+        storage.assertFact("edge", "b", "d");
+        storage.assertFact("edge", "c", "d");
+        storage.table(Functor.of("path", 2));
+        storage.addRule(new Rule("path", Arrays.asList("X", "Y"), Arrays.asList(
+            new QueryArgNode(null, "edge", new ArrayList<>(Arrays.asList("X", "Y")))),
+            Arrays.asList(), false));
+        storage.addRule(new Rule("path", Arrays.asList("X", "Y"), Arrays.asList(
+            new QueryArgNode(null, "path", new ArrayList<>(Arrays.asList("X", "Z"))),
+            new QueryArgNode(null, "edge", new ArrayList<>(Arrays.asList("Z", "Y")))),
+            Arrays.asList("AND"), false));
+        storage.addRule(new Rule("near", Arrays.asList("X"), Arrays.asList(
+            new QueryArgNode(null, "edge", new ArrayList<>(Arrays.asList(
+                new StringLiteralNode(null, "a"), "X")))),
+            Arrays.asList(), false));
+        storage.addRule(new Rule("near", Arrays.asList("X"), Arrays.asList(
+            new QueryArgNode(null, "edge", new ArrayList<>(Arrays.asList(
+                new StringLiteralNode(null, "b"), "X")))),
+            Arrays.asList(), false));
+
+        // the table of path(c, Y) is only evaluated after the new edge is added
+        QueryNode paths = new QueryNode(null, Arrays.asList(
+            new QueryArgNode(null, "edge", new ArrayList<>(Arrays.asList(
+                new StringLiteralNode(null, "a"), "X"))),
+            new QueryArgNode(null, "path", new ArrayList<>(Arrays.asList("X", "Y")))));
+        Iterator<List<BoundedPair>> solutions = new QuerySolver(storage).solutions(paths);
+        assertEquals(solutions.next().toString(), "[(X, b), (Y, d)]");
+        storage.assertFact("edge", "c", "e");
+        assertEquals(rest(solutions), "[[(X, c), (Y, d)]]");
+        assertEquals(rest(new QuerySolver(storage).solutions(paths)),
+            "[[(X, b), (Y, d)], [(X, c), (Y, d)], [(X, c), (Y, e)]]");
+
+        // rules are versioned like facts
+        QueryNode near = new QueryNode(null, Arrays.asList(
+            new QueryArgNode(null, "near", new ArrayList<>(Arrays.asList("X")))));
+        solutions = new QuerySolver(storage).solutions(near);
+        assertEquals(solutions.next().toString(), "[(X, b)]");
+        storage.addRule(new Rule("near", Arrays.asList("X"), Arrays.asList(
+            new QueryArgNode(null, "edge", new ArrayList<>(Arrays.asList(
+                new StringLiteralNode(null, "c"), "X")))),
+            Arrays.asList(), false));
+        assertEquals(rest(solutions), "[[(X, c)], [(X, d)]]");
+        assertEquals(rest(new QuerySolver(storage).solutions(near)),
+            "[[(X, b)], [(X, c)], [(X, d)], [(X, d)], [(X, e)]]");
+    }
+
+    private static String rest (Iterator<List<BoundedPair>> solutions) {
+        List<List<BoundedPair>> rest = new ArrayList<>();
+        solutions.forEachRemaining(rest::add);
+        return rest.toString();
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testPooledLimits()
+    {
+        // free(X) holds if no big(Y) is the twin of X, which takes a step for each big fact
+        RuleStorage storage = new RuleStorage();
+        for (int i = 0; i < 2000; i++)
+            storage.assertFact("big", "b" + i);
+        storage.assertFact("p", "x");
+        storage.addRule(new Rule("r", Arrays.asList("X"), Arrays.asList(
+            new QueryArgNode(null, "big", new ArrayList<>(Arrays.asList("Y"))),
+            new QueryArgNode(null, "twin", new ArrayList<>(Arrays.asList("X", "Y")))),
+            Arrays.asList("AND"), false));
+        storage.addRule(new Rule("free", Arrays.asList("X"), Arrays.asList(
+            new QueryArgNode(null, "p", new ArrayList<>(Arrays.asList("X"))),
+            new QueryArgNode(null, "r", new ArrayList<>(Arrays.asList("X")), QueryArgNode.NOT)),
+            Arrays.asList("AND"), false));
+        QueryNode query = new QueryNode(null, Arrays.asList(
+            new QueryArgNode(null, "free", new ArrayList<>(Arrays.asList("X")))));
+
+        QuerySolverPool solvers = new QuerySolverPool(storage);
+        QuerySolver solver = solvers.acquire();
+        solver.limit(new QueryLimits().steps(1_000_000));
+        assertEquals(solver.solve(query).toString(), "(true, [[(X, x)]])");
+        solvers.release(solver);
+
+        // the negation of the next query is limited and profiled as part of that query
+        QuerySolver reused = solvers.acquire();
+        QueryProfile profile = new QueryProfile();
+        reused.profile(profile);
+        reused.limit(new QueryLimits().steps(500));
+        QueryLimitException e = expectThrows(QueryLimitException.class, () -> reused.solve(query));
+        assertEquals(e.reason, QueryLimitException.Reason.STEPS);
+        assertNotNull(profile.get(Functor.of("big", 1)));
+        solvers.release(reused);
+
+        assertEquals(solvers.solve(query, Long.MAX_VALUE).toString(), "(true, [[(X, x)]])");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testJoinIndex()
+    {
+        // 20 facts of b share each Y, and 20 each Z, but only 5 share both
+        RuleStorage storage = new RuleStorage();
+        for (int i = 0; i < 80; i++) {
+            storage.assertFact("a", "x" + i, "y" + i % 4, "z" + i / 4 % 4);
+            storage.assertFact("b", "y" + i % 4, "z" + i / 4 % 4, "w" + i);
+        }
+        QueryNode query = new QueryNode(null, Arrays.asList(
+            new QueryArgNode(null, "a", new ArrayList<>(Arrays.asList(
+                new StringLiteralNode(null, "x0"), "Y", "Z"))),
+            new QueryArgNode(null, "b", new ArrayList<>(Arrays.asList("Y", "Z", "W")))));
+
+        QueryProfile profile = new QueryProfile();
+        QuerySolver solver = new QuerySolver(storage);
+        solver.profile(profile);
+        assertEquals(solver.solve(query).toString(), "(true, [" +
+            "[(Y, y0), (Z, z0), (W, w0)], [(Y, y0), (Z, z0), (W, w16)], " +
+            "[(Y, y0), (Z, z0), (W, w32)], [(Y, y0), (Z, z0), (W, w48)], " +
+            "[(Y, y0), (Z, z0), (W, w64)]])");
+        // only the facts that match both Y and Z are tried
+        assertEquals(profile.get(Functor.of("b", 3)).tries(), 5L);
+
+        // the join index follows the facts that are added and retracted
+        storage.retractFact("b", "y0", "z0", "w16");
+        storage.assertFact("b", "y0", "z0", "w80");
+        assertEquals(new QuerySolver(storage).solve(query).toString(), "(true, [" +
+            "[(Y, y0), (Z, z0), (W, w0)], [(Y, y0), (Z, z0), (W, w32)], " +
+            "[(Y, y0), (Z, z0), (W, w48)], [(Y, y0), (Z, z0), (W, w64)], " +
+            "[(Y, y0), (Z, z0), (W, w80)]])");
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testControl()
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    item(\"a\").\n" +
+                "    item(\"b\").\n" +
+                "    person(\"ann\").\n" +
+                "    person(\"bob\").\n" +
+                "    person(\"cid\").\n" +
+                "    married(\"bob\", \"eve\").\n" +
+                "    child(\"x\", \"ann\").\n" +
+                "    child(\"y\", \"ann\").\n" +
+                "    first(X) := item(X) AND !.\n" +
+                "    first(X) := item(X).\n" +
+                "    single(X) := person(X) AND NOT married(X, Y).\n" +
+                "    alone(X) := person(X) AND \\+ child(Y, X).\n" +
+                "    parent(X) := person(X) AND once(child(Y, X)).\n" +
+                "}";
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(first(X))" +
+                        "return X;"
+                , new Object[]{"a"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(single(X))" +
+                        "return X;"
+                , new Object[]{"ann", "cid"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(alone(X))" +
+                        "return X;"
+                , new Object[]{"bob", "cid"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(parent(X))" +
+                        "return X;"
+                , new Object[]{"ann"});
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testDisjunction()
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    day(\"sat\").\n" +
+                "    day(\"sun\").\n" +
+                "    day(\"mon\").\n" +
+                "    weekend(\"sat\").\n" +
+                "    weekend(\"sun\").\n" +
+                "    sunny(\"mon\").\n" +
+                "    sunny(\"sat\").\n" +
+                "    ok(\"mon\").\n" +
+                "    good_day(Z) := weekend(Z) OR sunny(Z) AND ok(Z).\n" +
+                "    pick(Z) := day(Z) AND weekend(Z) OR day(Z) AND ok(Z).\n" +
+                "    first(Z) := weekend(Z) AND ! OR ok(Z).\n" +
+                "}";
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(good_day(X))" +
+                        "return X;"
+                , new Object[]{"sat", "sun", "mon"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(pick(X))" +
+                        "return X;"
+                , new Object[]{"sat", "sun", "mon"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(first(X))" +
+                        "return X;"
+                , new Object[]{"sat"});
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testArithmetic()
+    {
+        rule = grammar.root;
+
+        String tearDeclaration = "tear {\n" +
+                "    age(\"ann\", 25).\n" +
+                "    age(\"bob\", 42).\n" +
+                "    age(\"cid\", 31).\n" +
+                "    height(\"ann\", 1.75).\n" +
+                "    height(\"bob\", 1.8).\n" +
+                "    old(X) := age(X, A) AND A > 30.\n" +
+                "    next(X, B) := age(X, A) AND B = A + 1.\n" +
+                "    tall(X) := height(X, H) AND H * 100 >= 180.\n" +
+                "    other(X, Y) := age(X, A) AND age(Y, B) AND X != Y AND A - B < 10 AND B - A < 10.\n" +
+                "}";
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(old(X))" +
+                        "return X;"
+                , new Object[]{"bob", "cid"});
+
+        check(tearDeclaration + "var B: String[] = []\n" +
+                        "var test: Bool = query(next(\"bob\", B))" +
+                        "return B;"
+                , new Object[]{"43"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(next(X, 32))" +
+                        "return X;"
+                , new Object[]{"cid"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(tall(X))" +
+                        "return X;"
+                , new Object[]{"bob"});
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(age(X, \"42\"))" +
+                        "return test;"
+                , false);
+
+        check(tearDeclaration + "var Y: String[] = []\n" +
+                        "var test: Bool = query(other(\"ann\", Y))" +
+                        "return Y;"
+                , new Object[]{"cid"});
+    }
+
+    // ---------------------------------------------------------------------------------------------
+
+    @Test public void testQueryLimit()
+    {
+        rule = grammar.root;
+
+        // always(X) has infinitely many solutions
+        String tearDeclaration = "tear {\n" +
+                "    value(\"a\").\n" +
+                "    value(\"b\").\n" +
+                "    always(X) := value(X).\n" +
+                "    always(X) := always(X).\n" +
+                "}";
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(always(X), 5)" +
+                        "return X;"
+                , new Object[]{"a", "b", "a", "b", "a"});
+
+        check(tearDeclaration + "var test: Bool = query(always(\"b\")); return test;", true);
+
+        check(tearDeclaration + "var X: String[] = []\n" +
+                        "var test: Bool = query(value(X), 1)" +
+                        "return X;"
+                , new Object[]{"a"});
+    }
 }
@@ -316,9 +316,18 @@ public final class SemanticAnalysisTests extends UraniumTestFixture
         successInput("tear {good_day(Z) := weekend(Z) OR sunny_day(Z) AND ok(Z).}");
     }
 
+    @Test public void testTearTable()
+    {
+        successInput("tear {table path/2. path(X, Y) := edge(X, Y).}");
+        failureInputWith("tear {table path/-1.}",
+            "Arity of tabled predicate must not be negative, not: -1");
+    }
+
     @Test public void testTearQuery()
     {
         successInput("var test1: Bool = query(woman(\"Bill\"))");
         successInput("var test1: Bool = query(man(X))");
+        successInput("var test1: Bool = query(man(X), 3)");
+        failureInputWith("var test1: Bool = query(man(X), 0)", "Query limit must be positive, not: 0");
     }
 }